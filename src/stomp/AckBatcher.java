@@ -0,0 +1,196 @@
+package stomp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Acknowledgements sent in the background, enabled with "ackDelay" (milliseconds) on the url.
+ * <p/>
+ * Acks without a receipt are collected from any thread and written together, one write holding everything that
+ * came in during the delay, or sooner once "ackBatch" (default 256) are waiting.  In client ack mode an ack covers
+ * every earlier message on the subscription too, so only the latest per subscription is actually sent; with
+ * "ackCoalesce=false" (for brokers that ack messages individually) every one is.
+ * <p/>
+ * Whatever is still waiting is sent when the connection closes, before DISCONNECT.
+ */
+final class AckBatcher implements Runnable {
+
+    private final Connection connection;
+    private final long delayNanos;
+    private final int maxPending;
+    private final boolean coalesce;
+    private final Thread thread;
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition added = lock.newCondition();
+    private Map<Subscription, Ack> latest = new LinkedHashMap<Subscription, Ack>(); // Guarded by 'lock'
+    private List<Ack> individual = new ArrayList<Ack>(); // Guarded by 'lock'
+    private int pending; // Guarded by 'lock', acks since the last flush, sent or not
+    private boolean stopped; // Guarded by 'lock'
+
+    // Keeps flushes, and so acks, in order.
+    private final Lock flushLock = new ReentrantLock();
+
+    AckBatcher(Connection connection, Properties properties) {
+        this.connection = connection;
+        delayNanos = TimeUnit.MILLISECONDS.toNanos(Long.parseLong(properties.getProperty("ackDelay")));
+        maxPending = Integer.parseInt(properties.getProperty("ackBatch", "256"));
+        coalesce = !"false".equals(properties.getProperty("ackCoalesce"));
+        thread = connection.newThread(this, "STOMP AckBatcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Queue an ack for a received message.
+     */
+    void add(Message message) {
+        Ack ack = new Ack(message.getProperty(Message.MESSAGE_ID), message.subscription, message.sequence);
+        lock.lock();
+        try {
+            if (coalesce && ack.subscription != null && ack.subscription.clientAck) {
+                Ack previous = latest.get(ack.subscription);
+                if (previous == null || previous.sequence < ack.sequence)
+                    latest.put(ack.subscription, ack);
+            } else {
+                individual.add(ack);
+            }
+            added();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queue an ack by message id alone.
+     */
+    void add(String messageId) {
+        lock.lock();
+        try {
+            individual.add(new Ack(messageId, null, 0));
+            added();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Send whatever acks are waiting, now.
+     */
+    void flush() throws IOException {
+        flushLock.lock();
+        try {
+            Map<Subscription, Ack> acks;
+            List<Ack> others;
+            lock.lock();
+            try {
+                if (pending == 0)
+                    return;
+                acks = latest;
+                others = individual;
+                latest = new LinkedHashMap<Subscription, Ack>();
+                individual = new ArrayList<Ack>();
+                pending = 0;
+            } finally {
+                lock.unlock();
+            }
+
+            List<Frame> frames = new ArrayList<Frame>(others.size() + acks.size());
+            for (Ack ack : others) {
+                frames.add(connection.ackFrame(ack.messageId));
+            }
+            for (Ack ack : acks.values()) {
+                frames.add(connection.ackFrame(ack.messageId));
+            }
+            connection.transmit(frames);
+            for (Ack ack : others) {
+                if (ack.subscription != null)
+                    ack.subscription.acknowledged(ack.sequence);
+            }
+            for (Ack ack : acks.values()) {
+                ack.subscription.acknowledged(ack.sequence);
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * End the background thread, then send anything still waiting.
+     */
+    void close() throws IOException {
+        lock.lock();
+        try {
+            stopped = true;
+            added.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            thread.join(1000);
+        } catch (InterruptedException e) {
+            // ignore
+        }
+        flush();
+    }
+
+    public void run() {
+        while (true) {
+            lock.lock();
+            try {
+                while (pending == 0 && !stopped) {
+                    added.await();
+                }
+                // Give more acks until the delay is up to join this write.
+                long left = delayNanos;
+                while (pending < maxPending && !stopped && left > 0) {
+                    left = added.awaitNanos(left);
+                }
+                if (stopped)
+                    break;
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                lock.unlock();
+            }
+
+            try {
+                flush();
+            } catch (IOException e) {
+                if (!connection.isClosed())
+                    connection.publishError("Ack failed: " + e, e);
+            }
+        }
+    }
+
+    //--------------------------------------------------------------------------------------------------------- Internal
+
+    /**
+     * Caller holds the lock.
+     */
+    private void added() {
+        pending++;
+        if (pending == 1 || pending >= maxPending)
+            added.signal();
+    }
+
+    private static final class Ack {
+        final String messageId;
+        final Subscription subscription;
+        final long sequence;
+
+        Ack(String messageId, Subscription subscription, long sequence) {
+            this.messageId = messageId;
+            this.subscription = subscription;
+            this.sequence = sequence;
+        }
+    }
+}
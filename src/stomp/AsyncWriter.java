@@ -0,0 +1,213 @@
+package stomp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Outbound pipeline for a stream transport, enabled with "writer=async" on the url.
+ * <p/>
+ * Any thread enqueues frames on a lock-free queue; a single writer thread drains it, encodes everything waiting into
+ * one buffer and writes the lot with a single call.  Under load that's one syscall per batch rather than per frame,
+ * and publishers no longer contend on the output lock.  With "writeLatency" (microseconds, default 0) the writer
+ * holds a batch that long for more frames to join it, trading latency for bigger writes when traffic is light.
+ * <p/>
+ * The queue is bounded ("writeQueue" frames, default 16384): senders block while it's full.  A write failure, or
+ * anything else going wrong on the writer thread, stops the writer, drops whatever is still queued and fails all later
+ * sends.
+ */
+final class AsyncWriter implements Runnable {
+
+    private static final int MAX_BATCH = 64 * 1024;
+
+    // Stands in for a heartbeat newline in the queue.
+    private static final Frame HEARTBEAT = new Frame("HEARTBEAT");
+
+    private final Queue<Frame> queue = new ConcurrentLinkedQueue<Frame>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicBoolean parked = new AtomicBoolean();
+    private final FrameEncoder encoder = new FrameEncoder(MAX_BATCH, false);
+    private final Connection connection;
+    private final OutputStream output;
+    private final long latencyNanos;
+    private final int maxQueued;
+    private final Thread thread;
+
+    // Senders blocked on a full queue.
+    private final Lock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final AtomicInteger blocked = new AtomicInteger();
+
+    private volatile boolean stopping;
+    private volatile boolean stopped;
+    private volatile IOException failure;
+
+    AsyncWriter(Connection connection, OutputStream output, Properties properties) {
+        this.connection = connection;
+        this.output = output;
+        latencyNanos = TimeUnit.MICROSECONDS.toNanos(Long.parseLong(properties.getProperty("writeLatency", "0")));
+        maxQueued = Integer.parseInt(properties.getProperty("writeQueue", "16384"));
+        thread = connection.newThread(this, "STOMP AsyncWriter");
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Queue a frame for writing.  The frame must not change afterwards.
+     */
+    void enqueue(Frame frame) throws IOException {
+        if (queued.get() >= maxQueued)
+            awaitSpace();
+        if (stopped)
+            throw stoppedException();
+        queue.add(frame);
+        queued.incrementAndGet();
+        // The writer may have stopped meanwhile, take the frame back unless it's been dealt with.
+        if (stopped && queue.remove(frame)) {
+            queued.decrementAndGet();
+            throw stoppedException();
+        }
+        if (parked.get() && parked.compareAndSet(true, false))
+            LockSupport.unpark(thread);
+    }
+
+    void heartbeat() throws IOException {
+        enqueue(HEARTBEAT);
+    }
+
+    /**
+     * Write whatever is still queued, then end the writer thread.
+     */
+    void stop(long waitMillis) {
+        stopping = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(waitMillis);
+        } catch (InterruptedException e) {
+            // ignore
+        }
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                Frame frame = queue.poll();
+                if (frame == null) {
+                    if (stopping)
+                        break;
+                    park(0);
+                    continue;
+                }
+
+                long deadline = System.nanoTime() + latencyNanos;
+                int count = 0;
+                encoder.clear();
+                while (frame != null) {
+                    if (frame == HEARTBEAT) {
+                        encoder.heartbeat();
+                    } else {
+                        encoder.encode(frame);
+                    }
+                    count++;
+                    if (encoder.length() >= MAX_BATCH)
+                        break;
+                    frame = queue.poll();
+                    if (frame == null && latencyNanos > 0)
+                        frame = awaitFrame(deadline);
+                }
+                output.write(encoder.array(), 0, encoder.length());
+
+                queued.addAndGet(-count);
+                if (blocked.get() > 0)
+                    signalNotFull();
+            }
+        } catch (IOException e) {
+            failure = e;
+            if (!stopping)
+                connection.publishError("Write failed: " + e, e);
+        } catch (RuntimeException e) {
+            failure = new IOException(e.toString(), e);
+            if (!stopping)
+                connection.publishError("Write failed: " + e, e);
+        } finally {
+            stopped = true;
+            // Nothing will write what's left.
+            while (queue.poll() != null) {
+                queued.decrementAndGet();
+            }
+            signalNotFull();
+        }
+    }
+
+    //--------------------------------------------------------------------------------------------------------- Internal
+
+    private IOException stoppedException() {
+        IOException e = failure;
+        return e == null ? new IOException("Connection closed.") : new IOException("Write failed: " + e, e);
+    }
+
+    private Frame awaitFrame(long deadline) {
+        while (!stopping) {
+            long left = deadline - System.nanoTime();
+            if (left <= 0)
+                return null;
+            park(left);
+            Frame frame = queue.poll();
+            if (frame != null)
+                return frame;
+        }
+        return null;
+    }
+
+    /**
+     * Sleep until a sender wakes us (or for 'nanos', if non-zero).
+     */
+    private void park(long nanos) {
+        parked.set(true);
+        if (queue.isEmpty() && !stopping) {
+            if (nanos > 0) {
+                LockSupport.parkNanos(this, nanos);
+            } else {
+                LockSupport.park(this);
+            }
+        }
+        parked.set(false);
+    }
+
+    private void awaitSpace() throws IOException {
+        blocked.incrementAndGet();
+        lock.lock();
+        try {
+            while (queued.get() >= maxQueued && !stopped) {
+                notFull.await(10, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted waiting to send.");
+        } finally {
+            lock.unlock();
+            blocked.decrementAndGet();
+        }
+    }
+
+    private void signalNotFull() {
+        lock.lock();
+        try {
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package stomp;
+
+import java.io.IOException;
+
+/**
+ * A consumer handed messages in batches, to spread per-call costs (a database transaction, an ack, taking a lock)
+ * over many messages.  Subscribe with it like any other consumer; its onMessage is then never called.
+ * <p/>
+ * A batch holds whatever messages are already received and waiting for the subscription: everything decoded from
+ * the last read off the socket (or packet), or with a dispatch executor whatever queued up while the consumer was
+ * busy.  Batches hold at most "batchSize" messages (default 256) and "batchBytes" bytes (default 1MB, but always at
+ * least one message).  With a dispatch executor, "batchLatency" (milliseconds, default 0) lets a batch that isn't
+ * full wait up to that long for more messages before delivery.
+ */
+public interface BatchConsumer extends Consumer {
+    void onMessages(MessageBatch batch) throws IOException;
+}
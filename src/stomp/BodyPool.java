@@ -0,0 +1,142 @@
+package stomp;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Size-classed pool of message body arrays, enabled per connection with "bodyPool=true" on the url.
+ * <p/>
+ * Arrays come in power-of-two sizes, so a pooled body is usually longer than its content; the real length travels
+ * with it as the frame / message content length.  Bodies too big for the largest class are allocated normally and
+ * simply dropped on release.  Each class keeps a bounded free list, so an idle pool holds on to a few MB at most.
+ * <p/>
+ * With "bodyPool=debug", every pooled message is also tracked by a weak reference along with where it was received,
+ * and any message garbage collected without having been released is reported as a leak via the connection's error
+ * listeners.
+ * <p/>
+ * Thread-safe; bodies are allocated on the connection's reader thread and released from any consumer thread.
+ */
+final class BodyPool {
+
+    private static final int MIN_SHIFT = 7;  // 128 bytes
+    private static final int MAX_SHIFT = 16; // 64KB
+    private static final int RETAINED_BYTES_PER_CLASS = 1024 * 1024;
+
+    private final byte[][][] free = new byte[MAX_SHIFT - MIN_SHIFT + 1][][];
+    private final int[] freeCount = new int[free.length];
+
+    private final Connection connection;
+
+    // Leak detection, only when debugging.
+    private final ReferenceQueue<Message> collected;
+    private final Map<Leak, Boolean> outstanding;
+
+    BodyPool(Connection connection, boolean leakDetection) {
+        this.connection = connection;
+        for (int i = 0; i < free.length; i++) {
+            free[i] = new byte[Math.max(8, RETAINED_BYTES_PER_CLASS >> (i + MIN_SHIFT))][];
+        }
+        if (leakDetection) {
+            collected = new ReferenceQueue<Message>();
+            outstanding = new ConcurrentHashMap<Leak, Boolean>();
+        } else {
+            collected = null;
+            outstanding = null;
+        }
+    }
+
+    /**
+     * @return An array at least 'length' bytes long.
+     */
+    byte[] allocate(int length) {
+        int sizeClass = sizeClass(length);
+        if (sizeClass == -1)
+            return new byte[length];
+
+        byte[][] list = free[sizeClass];
+        synchronized (list) {
+            int count = freeCount[sizeClass];
+            if (count > 0) {
+                byte[] body = list[--count];
+                list[count] = null;
+                freeCount[sizeClass] = count;
+                return body;
+            }
+        }
+        return new byte[1 << (sizeClass + MIN_SHIFT)];
+    }
+
+    /**
+     * Return an array obtained from {@link #allocate}.  The caller must not touch it afterwards.
+     */
+    void release(byte[] body) {
+        int sizeClass = sizeClass(body.length);
+        if (sizeClass == -1 || body.length != 1 << (sizeClass + MIN_SHIFT))
+            return; // Oversized, let the GC have it.
+
+        byte[][] list = free[sizeClass];
+        synchronized (list) {
+            int count = freeCount[sizeClass];
+            if (count < list.length) {
+                list[count] = body;
+                freeCount[sizeClass] = count + 1;
+            }
+        }
+    }
+
+    /**
+     * Start tracking a pooled message, if leak detection is on.
+     *
+     * @return A token to pass to {@link #untrack} when the message is released, or null.
+     */
+    Object track(Message message, int length) {
+        if (outstanding == null)
+            return null;
+        reportLeaks();
+        Leak leak = new Leak(message, collected, length);
+        outstanding.put(leak, Boolean.TRUE);
+        return leak;
+    }
+
+    void untrack(Object token) {
+        if (token != null) {
+            outstanding.remove(token);
+            ((Leak) token).clear();
+        }
+    }
+
+    //--------------------------------------------------------------------------------------------------------- Internal
+
+    private static int sizeClass(int length) {
+        int shift = MIN_SHIFT;
+        while ((1 << shift) < length) {
+            shift++;
+            if (shift > MAX_SHIFT)
+                return -1;
+        }
+        return shift - MIN_SHIFT;
+    }
+
+    private void reportLeaks() {
+        Leak leak;
+        while ((leak = (Leak) collected.poll()) != null) {
+            if (outstanding.remove(leak) != null) {
+                connection.publishError("LEAK: message body of " + leak.length +
+                        " bytes was garbage collected without Message.release().", leak.receivedAt);
+            }
+        }
+    }
+
+    private static final class Leak extends WeakReference<Message> {
+
+        private final int length;
+        private final Exception receivedAt = new Exception("Leaked message received here");
+
+        private Leak(Message message, ReferenceQueue<Message> queue, int length) {
+            super(message, queue);
+            this.length = length;
+        }
+    }
+}
@@ -31,10 +31,24 @@ public final class BufferConnection extends Connection {
     @Override
     protected void transmit(Frame frame, long waitMillis) throws IOException {
         if (frame.getType().equals (Frame.TYPE_SEND)) {
-            storeMessage (frame);
+            if (frame.destinations != null) {
+                for (String destination : frame.destinations) {
+                    Frame copy = frame.snapshot();
+                    copy.destinations = null;
+                    copy.getHeaders().put("destination", destination);
+                    storeMessage (copy);
+                }
+            } else {
+                storeMessage (frame);
+            }
         }
     }
 
+    @Override
+    protected boolean supportsReceipts() {
+        return false;
+    }
+
     @Override
     protected void disconnect() {
         // do nothing
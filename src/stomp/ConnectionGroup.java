@@ -0,0 +1,274 @@
+package stomp;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Several connections, to one or more brokers, used as one: each destination is handled by a single member, picked by
+ * consistent hashing of its name.  Everything sent to or subscribed on a destination goes through the same
+ * connection, so per-destination ordering holds, while different destinations spread over the members' sockets and
+ * threads.
+ * <p/>
+ * Each member owns many points on a hash ring.  When a member closes, its points go and only its destinations move,
+ * each to the next member along the ring; subscriptions made through the group on those destinations are made again
+ * there.  A closed member is noticed on the next send to one of its destinations, or by a check every "checkInterval"
+ * milliseconds (from the first url, default 1000).  Members opened with "reconnect=true" ride out outages themselves
+ * and are never dropped.
+ * <p/>
+ * Thread-safe.
+ */
+public final class ConnectionGroup implements Runnable {
+
+    // Points on the ring per member, enough to spread destinations evenly.
+    private static final int POINTS = 160;
+
+    private final List<Member> members;
+    private volatile Ring ring;
+    // Guarded by 'this'
+    private final Map<String, GroupSubscription> subscriptions = new LinkedHashMap<String, GroupSubscription>();
+    private final long checkInterval;
+    private final Thread checker;
+    private volatile boolean closed;
+
+    /**
+     * Open 'connectionsPerUrl' connections to each url.
+     */
+    public static ConnectionGroup open(Collection<String> urls, int connectionsPerUrl) throws IOException {
+        if (urls.isEmpty() || connectionsPerUrl < 1)
+            throw new IllegalArgumentException("No connections: " + urls + " x " + connectionsPerUrl);
+        List<Member> members = new ArrayList<Member>();
+        try {
+            for (String url : urls) {
+                for (int i = 0; i < connectionsPerUrl; i++) {
+                    members.add(new Member(url + "#" + i, Connection.openConnection(url)));
+                }
+            }
+        } catch (IOException e) {
+            for (Member member : members) {
+                member.connection.close();
+            }
+            throw e;
+        }
+        return new ConnectionGroup(members, members.get(0).connection.getUri().getQuery());
+    }
+
+    private ConnectionGroup(List<Member> members, String query) throws IOException {
+        this.members = members;
+        this.ring = new Ring(members);
+        Properties properties = new Properties();
+        if (query != null) {
+            StringReader reader = new StringReader(query.replace('&', '\n'));
+            properties.load(reader);
+            reader.close();
+        }
+        checkInterval = Long.parseLong(properties.getProperty("checkInterval", "1000"));
+        checker = members.get(0).connection.newThread(this, "STOMP ConnectionGroup");
+        checker.setDaemon(true);
+        checker.start();
+    }
+
+    /**
+     * @return The member handling the destination.
+     * @throws IOException If the group or every member has closed.
+     */
+    public Connection connectionFor(String destination) throws IOException {
+        while (true) {
+            if (closed)
+                throw new IOException("Connection group is closed.");
+            Connection connection = ring.get(destination);
+            if (connection == null)
+                throw new IOException("No connections left in the group.");
+            if (!connection.isClosed())
+                return connection;
+            rebalance();
+        }
+    }
+
+    public void send(String destination, Message message, long waitMillis) throws IOException {
+        connectionFor(destination).send(destination, message, waitMillis);
+    }
+
+    public ReceiptFuture sendAsync(String destination, Message message) throws IOException {
+        return connectionFor(destination).sendAsync(destination, message);
+    }
+
+    public void subscribe(String destination, Consumer consumer, long waitMillis, String... headers)
+            throws IOException {
+        Connection connection;
+        synchronized (this) {
+            if (subscriptions.containsKey(destination))
+                throw new IOException("Already subscribed to '" + destination + "'.");
+            connection = connectionFor(destination);
+            subscriptions.put(destination, new GroupSubscription(consumer, headers, connection));
+        }
+        try {
+            connection.subscribe(destination, consumer, waitMillis, headers);
+        } catch (IOException e) {
+            synchronized (this) {
+                subscriptions.remove(destination);
+            }
+            throw e;
+        }
+    }
+
+    public void unsubscribe(String destination, long waitMillis) throws IOException {
+        GroupSubscription subscription;
+        synchronized (this) {
+            subscription = subscriptions.remove(destination);
+        }
+        if (subscription == null)
+            throw new IOException("Not subscribed to '" + destination + "'.");
+        subscription.connection.unsubscribe(destination, waitMillis);
+    }
+
+    /**
+     * @return The members still open.
+     */
+    public List<Connection> getConnections() {
+        return ring.connections();
+    }
+
+    public void close() {
+        closed = true;
+        checker.interrupt();
+        for (Member member : members) {
+            member.connection.close();
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    public void run() {
+        while (!closed) {
+            try {
+                Thread.sleep(checkInterval);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (!closed)
+                rebalance();
+        }
+    }
+
+    //--------------------------------------------------------------------------------------------------------- Internal
+
+    /**
+     * Drop closed members from the ring, and move subscriptions on their destinations to the new owners.
+     */
+    private synchronized void rebalance() {
+        if (closed)
+            return;
+        List<Member> live = new ArrayList<Member>();
+        for (Member member : ring.members) {
+            if (!member.connection.isClosed())
+                live.add(member);
+        }
+        if (live.size() == ring.members.size())
+            return;
+        ring = new Ring(live);
+
+        for (Map.Entry<String, GroupSubscription> entry : subscriptions.entrySet()) {
+            GroupSubscription subscription = entry.getValue();
+            if (!subscription.connection.isClosed())
+                continue;
+            String destination = entry.getKey();
+            Connection connection = ring.get(destination);
+            if (connection == null)
+                return; // Nothing left to move them to.
+            try {
+                connection.subscribe(destination, subscription.consumer, -1, subscription.headers);
+                subscription.connection = connection;
+            } catch (IOException e) {
+                subscription.consumer.onError(connection, "Failed to move subscription: " + e, e);
+            }
+        }
+    }
+
+    private static int hash(String s) {
+        // Spread String.hashCode() over the whole range, similar names land far apart.
+        int h = s.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static final class Member {
+        final String name;
+        final Connection connection;
+
+        Member(String name, Connection connection) {
+            this.name = name;
+            this.connection = connection;
+        }
+    }
+
+    private static final class GroupSubscription {
+        final Consumer consumer;
+        final String[] headers;
+        Connection connection; // Guarded by the group
+
+        GroupSubscription(Consumer consumer, String[] headers, Connection connection) {
+            this.consumer = consumer;
+            this.headers = headers;
+            this.connection = connection;
+        }
+    }
+
+    /**
+     * Immutable: the members' points in hash order, searched by binary search.
+     */
+    private static final class Ring {
+        final List<Member> members;
+        final int[] points;
+        final Member[] owners;
+
+        Ring(List<Member> members) {
+            this.members = members;
+            long[] sorted = new long[members.size() * POINTS];
+            int n = 0;
+            for (int m = 0; m < members.size(); m++) {
+                for (int i = 0; i < POINTS; i++) {
+                    // Point in the high half, member index in the low, so sorting keeps them together.
+                    sorted[n++] = ((long) hash(members.get(m).name + "-" + i) << 32) | m;
+                }
+            }
+            Arrays.sort(sorted);
+            points = new int[n];
+            owners = new Member[n];
+            for (int i = 0; i < n; i++) {
+                points[i] = (int) (sorted[i] >> 32);
+                owners[i] = members.get((int) sorted[i]);
+            }
+        }
+
+        Connection get(String destination) {
+            if (points.length == 0)
+                return null;
+            int i = Arrays.binarySearch(points, hash(destination));
+            if (i < 0)
+                i = -i - 1;
+            return owners[i == points.length ? 0 : i].connection;
+        }
+
+        List<Connection> connections() {
+            List<Connection> list = new ArrayList<Connection>(members.size());
+            for (Member member : members) {
+                list.add(member.connection);
+            }
+            return Collections.unmodifiableList(list);
+        }
+    }
+}
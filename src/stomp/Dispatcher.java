@@ -0,0 +1,220 @@
+package stomp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands one subscription's messages to its consumer on an executor rather than the connection's reader thread.
+ * <p/>
+ * Messages queue up per subscription and at most one task per subscription runs at a time, so each consumer still
+ * sees its messages in order, one at a time, while different subscriptions run in parallel.  A task delivers a
+ * limited run of messages and then goes to the back of the executor's queue, so a busy subscription can't starve the
+ * others sharing the executor.
+ * <p/>
+ * The queue holds at most 'capacity' messages; what happens to a message arriving when it's full depends on the
+ * overflow policy, see {@link Connection#DISPATCH_BLOCK}.  Queued bytes count towards the connection's high water
+ * mark.  Errors go straight to the consumer on the reader thread.
+ * <p/>
+ * A {@link BatchConsumer} gets everything queued at once, up to the connection's batch limits, each task waiting up
+ * to "batchLatency" for a batch to fill.
+ */
+final class Dispatcher implements Runnable {
+
+    // Most messages delivered by one task before yielding the executor thread.
+    private static final int MAX_RUN = 64;
+
+    private final Connection connection;
+    private final Subscription subscription;
+    private final Executor executor;
+    private final int capacity;
+    private final String overflow;
+
+    private final Lock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition notEmpty = lock.newCondition();
+    private final Queue<Message> queue = new ArrayDeque<Message>();
+    private boolean scheduled; // Guarded by 'lock', true while a task is queued or running
+
+    Dispatcher(Connection connection, Subscription subscription, Executor executor, int capacity, String overflow) {
+        this.connection = connection;
+        this.subscription = subscription;
+        this.executor = executor;
+        this.capacity = capacity;
+        this.overflow = overflow;
+    }
+
+    /**
+     * Called on the reader thread: queue the message for the consumer.
+     */
+    void dispatch(Message message) throws IOException {
+        message.retain(); // The reader releases its reference as soon as this returns.
+        connection.buffered(message.size);
+        Message dropped = null;
+        boolean schedule;
+        lock.lock();
+        try {
+            while (queue.size() >= capacity) {
+                if (Connection.DISPATCH_DROP_OLDEST.equals(overflow)) {
+                    dropped = queue.poll();
+                } else if (Connection.DISPATCH_ERROR.equals(overflow)) {
+                    dropped = message;
+                    break;
+                } else if (connection.isClosed()) {
+                    dropped = message;
+                    break;
+                } else {
+                    notFull.await(100, TimeUnit.MILLISECONDS);
+                }
+            }
+            if (dropped != message) {
+                queue.add(message);
+                notEmpty.signal();
+            }
+            schedule = !scheduled && dropped != message;
+            if (schedule)
+                scheduled = true;
+        } catch (InterruptedException e) {
+            connection.consumed(message.size);
+            message.release();
+            subscription.finished();
+            throw new InterruptedIOException("Interrupted waiting to dispatch.");
+        } finally {
+            lock.unlock();
+        }
+
+        if (dropped != null) {
+            connection.consumed(dropped.size);
+            dropped.release();
+            subscription.finished();
+            if (dropped == message && !connection.isClosed())
+                subscription.consumer.onError(connection,
+                        "Dispatch queue full (" + capacity + " messages), message dropped.", null);
+        }
+        if (schedule)
+            execute();
+    }
+
+    public void run() {
+        if (subscription.batchConsumer != null) {
+            runBatch();
+            return;
+        }
+        for (int i = 0; i < MAX_RUN; i++) {
+            Message message;
+            lock.lock();
+            try {
+                message = queue.poll();
+                if (message == null) {
+                    scheduled = false;
+                    return;
+                }
+                notFull.signal();
+            } finally {
+                lock.unlock();
+            }
+            deliver(message);
+        }
+
+        lock.lock();
+        try {
+            if (queue.isEmpty()) {
+                scheduled = false;
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        execute();
+    }
+
+    //--------------------------------------------------------------------------------------------------------- Internal
+
+    private void runBatch() {
+        List<Message> messages = new ArrayList<Message>();
+        int bytes = 0;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connection.batchLatency);
+        lock.lock();
+        try {
+            while (messages.size() < connection.maxBatch && bytes < connection.maxBatchBytes) {
+                Message message = queue.poll();
+                if (message == null) {
+                    if (messages.isEmpty()) {
+                        scheduled = false;
+                        return;
+                    }
+                    long left = deadline - System.nanoTime();
+                    if (left <= 0 || connection.isClosed())
+                        break;
+                    notEmpty.awaitNanos(left);
+                    continue;
+                }
+                notFull.signal();
+                messages.add(message);
+                bytes += message.size;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt(); // Deliver what we have.
+        } finally {
+            lock.unlock();
+        }
+
+        connection.deliverBatch(subscription, messages);
+        connection.consumed(bytes);
+
+        lock.lock();
+        try {
+            if (queue.isEmpty()) {
+                scheduled = false;
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        execute();
+    }
+
+    private void deliver(Message message) {
+        try {
+            subscription.consumer.onMessage(message);
+        } catch (Exception e) {
+            connection.publishError("Unhandled exception in consumer: " + e, e);
+        } finally {
+            subscription.finished();
+            connection.consumed(message.size);
+            message.release();
+        }
+    }
+
+    private void execute() {
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            // Executor shut down: nothing will deliver what's queued.
+            lock.lock();
+            try {
+                Message message;
+                while ((message = queue.poll()) != null) {
+                    subscription.finished();
+                    connection.consumed(message.size);
+                    message.release();
+                }
+                scheduled = false;
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (!connection.isClosed())
+                connection.publishError("Dispatch executor rejected messages: " + e, e);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package stomp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Failover urls, listing several brokers, such as "stomp://a:61613,b:61613?connectTimeout=300".
+ * <p/>
+ * Every address of every host is tried, racing "happy eyeballs" style: attempts start in the order given,
+ * "connectStagger" milliseconds apart (default 250), or straight away when the one before fails, and the first to
+ * succeed wins.  A healthy broker early in the list usually wins before the next attempt even starts, while a dead one
+ * costs the stagger rather than a whole connect timeout.
+ */
+final class Failover {
+
+    /**
+     * One attempt at a connection, made on a thread of its own.
+     */
+    abstract static class Attempt<T> {
+        abstract T open(InetSocketAddress address) throws IOException;
+
+        /**
+         * Close the result of an attempt that succeeded too late.
+         */
+        abstract void discard(T result);
+    }
+
+    private Failover() {
+    }
+
+    /**
+     * @return Every address of every host in the url, in order.
+     */
+    static List<InetSocketAddress> addresses(URI uri) throws IOException {
+        List<InetSocketAddress> addresses = new ArrayList<InetSocketAddress>();
+        if (uri.getHost() != null) {
+            if (uri.getPort() == -1)
+                throw new IllegalArgumentException("Missing port: " + uri);
+            addAll(addresses, uri.getHost(), uri.getPort());
+            return addresses;
+        }
+
+        // A list of hosts doesn't parse as a server authority, take it apart here.
+        String authority = uri.getAuthority();
+        if (authority == null)
+            throw new IllegalArgumentException("Missing host: " + uri);
+        authority = authority.substring(authority.lastIndexOf('@') + 1);
+        for (String server : authority.split(",")) {
+            int colon = server.lastIndexOf(':');
+            if (colon == -1 || colon < server.lastIndexOf(']'))
+                throw new IllegalArgumentException("Missing port: " + uri);
+            String host = server.substring(0, colon).trim();
+            if (host.startsWith("[") && host.endsWith("]"))
+                host = host.substring(1, host.length() - 1);
+            if (host.length() == 0)
+                throw new IllegalArgumentException("Missing host: " + uri);
+            int port;
+            try {
+                port = Integer.parseInt(server.substring(colon + 1).trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid port: " + uri);
+            }
+            addAll(addresses, host, port);
+        }
+        return addresses;
+    }
+
+    /**
+     * @return The user info of the url, also from a list of hosts.
+     */
+    static String userInfo(URI uri) {
+        if (uri.getHost() != null || uri.getAuthority() == null)
+            return uri.getUserInfo();
+        String authority = uri.getAuthority();
+        int at = authority.lastIndexOf('@');
+        return at == -1 ? null : authority.substring(0, at);
+    }
+
+    /**
+     * Race attempts on the addresses.
+     *
+     * @return The first result.
+     * @throws IOException The last failure, if every attempt failed.
+     */
+    static <T> T race(List<InetSocketAddress> addresses, long stagger, boolean virtual, final Attempt<T> attempt)
+            throws IOException {
+        if (addresses.size() == 1)
+            return attempt.open(addresses.get(0));
+
+        final Race<T> race = new Race<T>();
+        race.lock.lock();
+        try {
+            for (int i = 0; i < addresses.size(); i++) {
+                final InetSocketAddress address = addresses.get(i);
+                Thread thread = VirtualThreads.newThread(new Runnable() {
+                    public void run() {
+                        race.run(attempt, address);
+                    }
+                }, "STOMP connect " + address, virtual);
+                thread.setDaemon(true);
+                thread.start();
+
+                // Give it a head start, unless it fails first.
+                long left = TimeUnit.MILLISECONDS.toNanos(stagger);
+                while (race.winner == null && race.failed <= i && left > 0 && i < addresses.size() - 1) {
+                    left = race.done.awaitNanos(left);
+                }
+                if (race.winner != null)
+                    break;
+            }
+            while (race.winner == null && race.failed < addresses.size()) {
+                race.done.await();
+            }
+            race.over = true;
+            if (race.winner != null)
+                return race.winner;
+            throw new IOException("Failed to connect to " + addresses + ": " + race.error.getMessage(), race.error);
+        } catch (InterruptedException e) {
+            race.over = true;
+            throw new IOException("Interrupted connecting.", e);
+        } finally {
+            race.lock.unlock();
+        }
+    }
+
+    //--------------------------------------------------------------------------------------------------------- Internal
+
+    private static void addAll(List<InetSocketAddress> addresses, String host, int port) throws IOException {
+        for (InetAddress address : InetAddress.getAllByName(host)) {
+            addresses.add(new InetSocketAddress(address, port));
+        }
+    }
+
+    private static final class Race<T> {
+        final Lock lock = new ReentrantLock();
+        final Condition done = lock.newCondition();
+        T winner; // Guarded by 'lock'
+        int failed; // Guarded by 'lock'
+        IOException error; // Guarded by 'lock'
+        boolean over; // Guarded by 'lock'
+
+        void run(Attempt<T> attempt, InetSocketAddress address) {
+            T result;
+            try {
+                result = attempt.open(address);
+            } catch (IOException e) {
+                lock.lock();
+                try {
+                    failed++;
+                    error = e;
+                    done.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            } catch (RuntimeException e) {
+                lock.lock();
+                try {
+                    failed++;
+                    error = new IOException(e.toString(), e);
+                    done.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+
+            boolean won;
+            lock.lock();
+            try {
+                won = winner == null && !over;
+                if (won)
+                    winner = result;
+                done.signalAll();
+            } finally {
+                lock.unlock();
+            }
+            if (!won)
+                attempt.discard(result);
+        }
+    }
+}
@@ -3,8 +3,10 @@ package stomp;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Map;
 
 public final class Frame {
@@ -24,8 +26,23 @@ public final class Frame {
     public static final String TYPE_ERROR = "ERROR";
 
     private String type;
-    private final Map<String, String> headers;
+    private volatile Map<String, String> headers;
     private byte[] content;
+    private int contentLength;
+
+    // To send a copy of the frame to each of these, instead of the destination header.
+    Collection<String> destinations;
+
+    // Pool the content came from, if any, in which case the array may be longer than the content.
+    BodyPool pool;
+
+    // Received frames keep their headers undecoded, as trimmed "key:value\n" lines, until asked for.  Messages are
+    // read on other threads: only cleared once 'headers' is published, so seeing it null means the map is there.
+    private volatile byte[] rawHeaders;
+    private HeaderSymbols symbols;
+
+    // Where a multicast frame came from, the "host-address" header once decoded.
+    private String hostAddress;
 
     public Frame(String type) {
         this (type, null, null);
@@ -34,15 +51,57 @@ public final class Frame {
     public Frame(String type, Map<String, String> headers, byte[] content) {
         this.type = type;
         if (headers == null)
-            headers = new HashMap<String, String>();
+            headers = new HeaderMap();
         this.headers = headers;
-        this.content = content;
+        setContent(content);
     }
 
     public Frame (Message message) {
         this.type = TYPE_SEND;
-        this.headers = message.headers;
+        this.headers = message.headers();
         this.content = message.content;
+        this.contentLength = message.contentLength;
+    }
+
+    /**
+     * @return A copy with headers of its own, for encoding later on another thread while the caller carries on
+     * changing the original (or the Message it came from).  The content is shared.
+     */
+    Frame snapshot() {
+        Frame copy = new Frame(type, new HeaderMap(getHeaders()), null);
+        copy.content = content;
+        copy.contentLength = contentLength;
+        copy.destinations = destinations;
+        return copy;
+    }
+
+    /**
+     * A received frame, its headers decoded on demand.
+     */
+    static Frame decoded(String type, byte[] rawHeaders, HeaderSymbols symbols) {
+        Frame frame = new Frame(type, Collections.<String, String>emptyMap(), null);
+        frame.headers = null;
+        frame.rawHeaders = rawHeaders;
+        frame.symbols = symbols;
+        return frame;
+    }
+
+    /**
+     * Set the "host-address" header, without decoding the others.  Called before the frame is handed on.
+     */
+    void setHostAddress(String hostAddress) {
+        if (rawHeaders == null)
+            getHeaders().put(Message.HOST_ADDRESS, hostAddress);
+        else
+            this.hostAddress = hostAddress;
+    }
+
+    /**
+     * @return Length of a received frame's headers if not yet decoded, else 0.
+     */
+    int rawHeadersLength() {
+        byte[] raw = rawHeaders;
+        return raw == null ? 0 : raw.length;
     }
 
     public byte[] getContent() {
@@ -50,7 +109,20 @@ public final class Frame {
     }
 
     public void setContent(byte[] content) {
+        setContent(content, content == null ? 0 : content.length, null);
+    }
+
+    void setContent(byte[] content, int contentLength, BodyPool pool) {
         this.content = content;
+        this.contentLength = contentLength;
+        this.pool = pool;
+    }
+
+    /**
+     * @return Length of the content, which for pooled bodies may be less than getContent().length.
+     */
+    public int getContentLength() {
+        return contentLength;
     }
 
     public String getType() {
@@ -62,7 +134,63 @@ public final class Frame {
     }
 
     public Map<String, String> getHeaders() {
-        return headers;
+        Map<String, String> map = headers;
+        if (map == null) {
+            synchronized (this) {
+                map = headers;
+                if (map == null) {
+                    map = new HeaderMap();
+                    byte[] raw = rawHeaders;
+                    for (int i = 0; i < raw.length; ) {
+                        int colon = indexOf(raw, i, ':');
+                        int eol = indexOf(raw, colon + 1, '\n');
+                        String key = symbols.key(raw, i, colon - i);
+                        map.put(key, symbols.value(key, raw, colon + 1, eol - colon - 1));
+                        i = eol + 1;
+                    }
+                    if (hostAddress != null)
+                        map.put(Message.HOST_ADDRESS, hostAddress);
+                    headers = map;
+                    rawHeaders = null;
+                }
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Get a single header.  Unlike getHeaders(), on a received frame this decodes only the one value asked for.
+     *
+     * @return The header value, or null if not present.
+     */
+    public String getHeader(String key) {
+        byte[] raw = rawHeaders;
+        if (raw == null)
+            return headers.get(key);
+
+        if (hostAddress != null && Message.HOST_ADDRESS.equals(key))
+            return hostAddress;
+
+        // Last one wins, as if they had all been put in the map.
+        int valueStart = -1;
+        int valueEnd = -1;
+        for (int i = 0; i < raw.length; ) {
+            int colon = indexOf(raw, i, ':');
+            int eol = indexOf(raw, colon + 1, '\n');
+            if (HeaderSymbols.matches(raw, i, colon - i, key)) {
+                valueStart = colon + 1;
+                valueEnd = eol;
+            }
+            i = eol + 1;
+        }
+        return valueStart == -1 ? null : symbols.value(key, raw, valueStart, valueEnd - valueStart);
+    }
+
+    private static int indexOf(byte[] bytes, int from, char c) {
+        while (bytes[from] != c) {
+            from++;
+        }
+        return from;
     }
 
     public static Frame read (DataInputStream input) throws IOException {
@@ -100,24 +228,14 @@ public final class Frame {
             // Read any content.
             if (expectedLength == -1) {
                 // Variable-length read, terminated by null (ie, probably ASCII or UTF8 string).
-                // This really sucks, but there's no way around it in STOMP ... its a sentinel byte so we
-                // have to read one byte at a time.  Highly recommend your stomp server / client sets
-                // the "content-length" header! (See below).
-                ByteArrayOutputStream baos = null;
-                int b;
-                while ((b = input.readByte()) != 0) {
-                    if (baos == null) {
-                        baos = new ByteArrayOutputStream(2048);
-                    }
-                    baos.write(b);
-                }
-                if (baos != null)
-                    frame.content = baos.toByteArray();
+                // Still recommend your stomp server / client sets the "content-length" header (see below), but
+                // we can at least scan whatever is already buffered in bulk rather than one byte at a time.
+                frame.setContent(readUntilNul(input));
             } else if (expectedLength > 0) {
                 // Read exactly the expected data into a new byte[]
                 byte[] body = new byte[expectedLength];
                 input.readFully(body);
-                frame.content = body;
+                frame.setContent(body);
             }
 
         }
@@ -125,10 +243,56 @@ public final class Frame {
         return frame;
     }
 
+    private static byte[] readUntilNul(DataInputStream input) throws IOException {
+        ByteArrayOutputStream baos = null;
+        if (!input.markSupported()) {
+            // Can't push back bytes past the terminator, so we have to read one byte at a time.
+            int b;
+            while ((b = input.readByte()) != 0) {
+                if (baos == null) {
+                    baos = new ByteArrayOutputStream(2048);
+                }
+                baos.write(b);
+            }
+            return baos == null ? null : baos.toByteArray();
+        }
+
+        // Read a chunk, and if the NUL is in it rewind and skip just past it leaving the rest for the next frame.
+        byte[] chunk = new byte[Math.min(Math.max(input.available(), 256), 8192)];
+        while (true) {
+            input.mark(chunk.length);
+            int count = input.read(chunk);
+            if (count == -1)
+                throw new EOFException();
+            int nul = 0;
+            while (nul < count && chunk[nul] != 0) {
+                nul++;
+            }
+            if (nul < count) {
+                input.reset();
+                input.skipBytes(nul + 1);
+                if (baos == null) {
+                    if (nul == 0)
+                        return null;
+                    byte[] content = new byte[nul];
+                    System.arraycopy(chunk, 0, content, 0, nul);
+                    return content;
+                }
+                baos.write(chunk, 0, nul);
+                return baos.toByteArray();
+            }
+            if (baos == null) {
+                baos = new ByteArrayOutputStream(chunk.length * 2);
+            }
+            baos.write(chunk, 0, count);
+        }
+    }
+
     public void write (DataOutputStream dataOut) throws IOException {
         dataOut.writeBytes(type);
         dataOut.writeByte('\n');
 
+        Map<String, String> headers = getHeaders();
         if (!headers.isEmpty()) {
             for (Map.Entry<String, String> entry : headers.entrySet()) {
                 dataOut.writeBytes(entry.getKey());
@@ -140,13 +304,13 @@ public final class Frame {
         }
         if (content != null) {
             dataOut.writeBytes("content-length:");
-            dataOut.writeBytes(Integer.toString(content.length));
+            dataOut.writeBytes(Integer.toString(contentLength));
             dataOut.writeByte('\n');
         }
         dataOut.writeByte('\n');
 
         if (content != null) {
-            dataOut.write(content);
+            dataOut.write(content, 0, contentLength);
         }
         dataOut.write(0x00);
         dataOut.flush();
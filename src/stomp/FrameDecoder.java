@@ -0,0 +1,366 @@
+package stomp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental, resumable STOMP frame decoder.
+ * <p/>
+ * Frames are decoded straight out of a {@link ByteBuffer} holding raw bytes read from the wire.  Each call to
+ * {@link #decode(ByteBuffer)} consumes as much of the buffer as it can and returns a complete frame, or null if more
+ * data is needed.  Partial command or header lines are left in the buffer (the caller compacts and reads more), while
+ * partial bodies, with or without a content-length, are copied out as they arrive, so a frame may be split across any
+ * number of reads.
+ * <p/>
+ * Instances hold per-stream state and are not thread-safe; use one per connection.
+ */
+public final class FrameDecoder {
+
+    private static final int STATE_COMMAND = 0;
+    private static final int STATE_HEADERS = 1;
+    private static final int STATE_BODY = 2;
+    private static final int STATE_BODY_NUL = 3;
+
+    private static final String[] COMMANDS = {
+            Frame.TYPE_MESSAGE, Frame.TYPE_RECEIPT, Frame.TYPE_CONNECTED, Frame.TYPE_ERROR,
+            Frame.TYPE_SEND, Frame.TYPE_ACK, Frame.TYPE_SUBSCRIBE, Frame.TYPE_UNSUBSCRIBE,
+            Frame.TYPE_BEGIN, Frame.TYPE_COMMIT, Frame.TYPE_ABORT, Frame.TYPE_CONNECT, Frame.TYPE_DISCONNECT,
+    };
+
+    private int state = STATE_COMMAND;
+
+    // Bytes past buffer.position() already scanned without finding the current line terminator.
+    private int scanned;
+
+    // Frame under construction.
+    private String command;
+    private Frame frame;
+    private int contentLength;
+
+    // Trimmed "key:value\n" header lines of the frame under construction, reused from frame to frame.
+    private byte[] headers = new byte[512];
+    private int headersLength;
+    private byte[] body;
+    private int bodyRead;
+
+    // Body bytes of a NUL-terminated frame seen in earlier reads, reused from frame to frame.
+    private byte[] partial;
+    private int partialLength;
+
+    // Canonical keys and values, shared by every frame on this connection.
+    private final HeaderSymbols symbols = new HeaderSymbols();
+
+    // Where bodies come from, if pooling.
+    private BodyPool pool;
+
+    // Scratch space for decoding lines from buffers without an accessible array.
+    private byte[] scratch = new byte[256];
+
+    /**
+     * Decode the next frame from the buffer, between its position and limit.
+     *
+     * @param buffer Raw bytes, in read mode.  On return the position is advanced past all consumed bytes.
+     * @return The next complete frame, or null if the buffer doesn't hold one yet.
+     * @throws IOException If the input isn't valid STOMP.
+     */
+    public Frame decode(ByteBuffer buffer) throws IOException {
+        while (true) {
+            switch (state) {
+                case STATE_COMMAND:
+                    if (!readCommand(buffer))
+                        return null;
+                    break;
+                case STATE_HEADERS:
+                    if (!readHeader(buffer))
+                        return null;
+                    break;
+                case STATE_BODY:
+                    if (!readBody(buffer))
+                        return null;
+                    return complete();
+                case STATE_BODY_NUL:
+                    if (!readBodyNul(buffer))
+                        return null;
+                    return complete();
+            }
+        }
+    }
+
+    /**
+     * Discard any partially decoded frame, ie before reusing the decoder on an unrelated input such as a new datagram.
+     */
+    public void reset() {
+        // A body half filled is nobody's, give it back.
+        if (body != null && pool != null)
+            pool.release(body);
+        state = STATE_COMMAND;
+        scanned = 0;
+        frame = null;
+        body = null;
+        partialLength = 0;
+    }
+
+    void setBodyPool(BodyPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Compact the buffer after a decode pass, leaving it ready to receive more data.  If the buffer is full because a
+     * single line doesn't fit, it is replaced by one twice the size.
+     *
+     * @param buffer The buffer, in read mode.
+     * @return The buffer to read into, in write mode.  May be a different instance than was passed in.
+     */
+    public static ByteBuffer compact(ByteBuffer buffer) {
+        buffer.compact();
+        if (!buffer.hasRemaining()) {
+            ByteBuffer bigger = buffer.isDirect()
+                    ? ByteBuffer.allocateDirect(buffer.capacity() * 2)
+                    : ByteBuffer.allocate(buffer.capacity() * 2);
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+        }
+        return buffer;
+    }
+
+    //--------------------------------------------------------------------------------------------------------- Internal
+
+    private boolean readCommand(ByteBuffer buffer) throws IOException {
+        // Skip heartbeats, NUL terminators and other whitespace between frames.
+        int start = buffer.position();
+        int limit = buffer.limit();
+        while (start < limit && isWhitespace(buffer.get(start))) {
+            start++;
+        }
+        buffer.position(start);
+        if (start == limit)
+            return false;
+
+        int eol = indexOf(buffer, start + scanned, limit, (byte) '\n');
+        if (eol == -1) {
+            scanned = limit - start;
+            return false;
+        }
+        scanned = 0;
+
+        int end = trimEnd(buffer, start, eol);
+        command = command(buffer, start, end);
+        buffer.position(eol + 1);
+
+        headersLength = 0;
+        contentLength = -1;
+        state = STATE_HEADERS;
+        return true;
+    }
+
+    private boolean readHeader(ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        int eol = indexOf(buffer, start + scanned, limit, (byte) '\n');
+        if (eol == -1) {
+            scanned = limit - start;
+            return false;
+        }
+        scanned = 0;
+        buffer.position(eol + 1);
+
+        int end = eol;
+        if (end > start && buffer.get(end - 1) == '\r')
+            end--;
+
+        if (end == start) {
+            // Blank line, end of headers.  They are handed to the frame raw, to be decoded if and when needed.
+            byte[] raw = new byte[headersLength];
+            System.arraycopy(headers, 0, raw, 0, headersLength);
+            frame = Frame.decoded(command, raw, symbols);
+            if (contentLength == -1) {
+                state = STATE_BODY_NUL;
+            } else {
+                if (contentLength == 0)
+                    body = null;
+                else
+                    body = pool != null ? pool.allocate(contentLength) : new byte[contentLength];
+                bodyRead = 0;
+                state = STATE_BODY;
+            }
+            return true;
+        }
+
+        int colon = indexOf(buffer, start, end, (byte) ':');
+        if (colon == -1)
+            throw new IOException("Malformed header line in '" + command + "' frame.");
+
+        int keyStart = trimStart(buffer, start, colon);
+        int keyEnd = trimEnd(buffer, keyStart, colon);
+        int valueStart = trimStart(buffer, colon + 1, end);
+        int valueEnd = trimEnd(buffer, valueStart, end);
+        int keyLength = keyEnd - keyStart;
+        if (HeaderSymbols.matches(array(buffer, keyStart, keyEnd), offset(buffer, keyStart), keyLength,
+                HeaderSymbols.CONTENT_LENGTH)) {
+            contentLength = parseLength(buffer, valueStart, valueEnd);
+        }
+
+        int length = keyLength + valueEnd - valueStart + 2;
+        if (headers.length - headersLength < length) {
+            byte[] bigger = new byte[Math.max(headersLength + length, headers.length * 2)];
+            System.arraycopy(headers, 0, bigger, 0, headersLength);
+            headers = bigger;
+        }
+        append(buffer, keyStart, keyEnd);
+        headers[headersLength++] = ':';
+        append(buffer, valueStart, valueEnd);
+        headers[headersLength++] = '\n';
+        return true;
+    }
+
+    private void append(ByteBuffer buffer, int start, int end) {
+        int length = end - start;
+        System.arraycopy(array(buffer, start, end), offset(buffer, start), headers, headersLength, length);
+        headersLength += length;
+    }
+
+    private int parseLength(ByteBuffer buffer, int start, int end) throws IOException {
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9 || (value = value * 10 + digit) > Integer.MAX_VALUE)
+                throw new IOException("Invalid content-length '" + string(buffer, start, end) + "'.");
+        }
+        if (start == end)
+            throw new IOException("Missing content-length value.");
+        return (int) value;
+    }
+
+    private boolean readBody(ByteBuffer buffer) {
+        // The frame's trailing NUL is left behind, it is skipped as whitespace before the next command.
+        if (body != null) {
+            int count = Math.min(contentLength - bodyRead, buffer.remaining());
+            buffer.get(body, bodyRead, count);
+            bodyRead += count;
+            if (bodyRead < contentLength)
+                return false;
+            frame.setContent(body, contentLength, pool);
+        }
+        return true;
+    }
+
+    private boolean readBodyNul(ByteBuffer buffer) {
+        int start = buffer.position();
+        int limit = buffer.limit();
+        int nul = indexOf(buffer, start, limit, (byte) 0);
+        if (nul == -1) {
+            // Move the whole run out of the way, so the read buffer doesn't have to grow to hold the body.
+            int count = limit - start;
+            if (count == 0)
+                return false;
+            if (partial == null || partial.length - partialLength < count) {
+                byte[] bigger = new byte[Math.max(partialLength + count, partial == null ? 2048 : partial.length * 2)];
+                if (partialLength > 0)
+                    System.arraycopy(partial, 0, bigger, 0, partialLength);
+                partial = bigger;
+            }
+            buffer.get(partial, partialLength, count);
+            partialLength += count;
+            return false;
+        }
+
+        int count = nul - start;
+        int length = partialLength + count;
+        if (length > 0) {
+            byte[] content = pool != null ? pool.allocate(length) : new byte[length];
+            if (partialLength > 0)
+                System.arraycopy(partial, 0, content, 0, partialLength);
+            buffer.get(content, partialLength, count);
+            frame.setContent(content, length, pool);
+            partialLength = 0;
+        }
+        buffer.position(nul + 1);
+        return true;
+    }
+
+    private Frame complete() {
+        Frame result = frame;
+        frame = null;
+        command = null;
+        body = null;
+        state = STATE_COMMAND;
+        return result;
+    }
+
+    private static boolean isWhitespace(byte b) {
+        return b >= 0 && b <= ' ';
+    }
+
+    private static int indexOf(ByteBuffer buffer, int from, int to, byte b) {
+        if (buffer.hasArray()) {
+            final byte[] array = buffer.array();
+            final int offset = buffer.arrayOffset();
+            for (int i = from + offset, end = to + offset; i < end; i++) {
+                if (array[i] == b)
+                    return i - offset;
+            }
+        } else {
+            for (int i = from; i < to; i++) {
+                if (buffer.get(i) == b)
+                    return i;
+            }
+        }
+        return -1;
+    }
+
+    private static int trimStart(ByteBuffer buffer, int start, int end) {
+        while (start < end && isWhitespace(buffer.get(start)))
+            start++;
+        return start;
+    }
+
+    private static int trimEnd(ByteBuffer buffer, int start, int end) {
+        while (end > start && isWhitespace(buffer.get(end - 1)))
+            end--;
+        return end;
+    }
+
+    private String command(ByteBuffer buffer, int start, int end) {
+        for (String command : COMMANDS) {
+            if (matches(buffer, start, end, command))
+                return command;
+        }
+        return string(buffer, start, end);
+    }
+
+    private static boolean matches(ByteBuffer buffer, int start, int end, String s) {
+        int length = s.length();
+        if (end - start != length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if ((buffer.get(start + i) & 0xff) != s.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private String string(ByteBuffer buffer, int start, int end) {
+        return HeaderSymbols.string(array(buffer, start, end), offset(buffer, start), end - start);
+    }
+
+    /**
+     * @return The buffer's backing array, or if it doesn't have one, scratch space holding a copy of the range.
+     */
+    private byte[] array(ByteBuffer buffer, int start, int end) {
+        if (buffer.hasArray())
+            return buffer.array();
+
+        int length = end - start;
+        if (scratch.length < length)
+            scratch = new byte[Math.max(length, scratch.length * 2)];
+        for (int i = 0; i < length; i++) {
+            scratch[i] = buffer.get(start + i);
+        }
+        return scratch;
+    }
+
+    private static int offset(ByteBuffer buffer, int start) {
+        return buffer.hasArray() ? buffer.arrayOffset() + start : 0;
+    }
+}
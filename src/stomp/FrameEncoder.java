@@ -0,0 +1,274 @@
+package stomp;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.Map;
+
+/**
+ * Single-pass STOMP frame encoder writing into a reusable ByteBuffer.
+ * <p/>
+ * Frames are appended one after another until the buffer is {@link #clear() cleared}, so a batch of frames can be
+ * handed to the socket in one write.  The buffer only grows when a frame doesn't fit, so in steady state encoding
+ * produces no garbage.  As with {@link Frame#write}, command and header text is written one byte per char.
+ * <p/>
+ * Instances are not thread-safe; use one per connection, under the connection's output lock.
+ */
+public final class FrameEncoder {
+
+    // Don't hang on to the memory of an occasional huge frame forever.
+    private static final int MAX_RETAINED = 256 * 1024;
+
+    private static final byte[] CONTENT_LENGTH = {
+            'c', 'o', 'n', 't', 'e', 'n', 't', '-', 'l', 'e', 'n', 'g', 't', 'h', ':'
+    };
+
+    private final int initialCapacity;
+    private final boolean direct;
+    private ByteBuffer buffer;
+    private int written; // Start of what writeTo hasn't got out yet
+
+    public FrameEncoder() {
+        this(4096, false);
+    }
+
+    /**
+     * @param initialCapacity Starting buffer size in bytes.
+     * @param direct          Use a direct buffer, for handing straight to an NIO channel.
+     */
+    public FrameEncoder(int initialCapacity, boolean direct) {
+        this.initialCapacity = initialCapacity;
+        this.direct = direct;
+        buffer = allocate(initialCapacity);
+    }
+
+    /**
+     * Discard everything encoded so far.
+     */
+    public void clear() {
+        if (buffer.capacity() > MAX_RETAINED) {
+            buffer = allocate(initialCapacity);
+        } else {
+            buffer.clear();
+        }
+        written = 0;
+    }
+
+    /**
+     * Append the frame to the buffer, from its command through to the terminating NUL.
+     */
+    public void encode(Frame frame) {
+        if (frame.destinations != null) {
+            encodeFanOut(frame);
+            return;
+        }
+        putString(frame.getType());
+        putByte('\n');
+        putHeaders(frame.getHeaders(), false);
+        putBody(frame);
+    }
+
+    /**
+     * A copy of the frame per destination.  The headers after the destination (and receipt, which only the last copy
+     * asks for), the body and the NUL are encoded once, and copied for the rest.
+     */
+    private void encodeFanOut(Frame frame) {
+        String receipt = frame.getHeaders().get("receipt");
+        int remaining = frame.destinations.size();
+        int tailStart = -1;
+        int tailEnd = -1;
+        for (String destination : frame.destinations) {
+            putString(frame.getType());
+            putByte('\n');
+            putHeader("destination", destination);
+            if (--remaining == 0 && receipt != null)
+                putHeader("receipt", receipt);
+            if (tailStart == -1) {
+                tailStart = buffer.position();
+                putHeaders(frame.getHeaders(), true);
+                putBody(frame);
+                tailEnd = buffer.position();
+            } else {
+                ensure(tailEnd - tailStart);
+                ByteBuffer tail = buffer.duplicate();
+                tail.limit(tailEnd);
+                tail.position(tailStart);
+                buffer.put(tail);
+            }
+        }
+    }
+
+    private void putHeaders(Map<String, String> headers, boolean fanOut) {
+        if (headers instanceof HeaderMap) {
+            // Index access, no iterator or entry garbage.
+            HeaderMap map = (HeaderMap) headers;
+            for (int i = 0, size = map.size(); i < size; i++) {
+                String key = map.keyAt(i);
+                if (!fanOut || !isFanOutKey(key))
+                    putHeader(key, map.valueAt(i));
+            }
+        } else if (!headers.isEmpty()) {
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                if (!fanOut || !isFanOutKey(entry.getKey()))
+                    putHeader(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private static boolean isFanOutKey(String key) {
+        return "destination".equals(key) || "receipt".equals(key);
+    }
+
+    private void putBody(Frame frame) {
+        byte[] content = frame.getContent();
+        int contentLength = frame.getContentLength();
+        if (content != null) {
+            ensure(CONTENT_LENGTH.length + 11);
+            buffer.put(CONTENT_LENGTH);
+            putInt(contentLength);
+            buffer.put((byte) '\n');
+        }
+        putByte('\n');
+
+        if (content != null) {
+            ensure(contentLength + 1);
+            buffer.put(content, 0, contentLength);
+        }
+        putByte(0);
+    }
+
+    /**
+     * Append a heartbeat, a lone newline between frames.
+     */
+    public void heartbeat() {
+        putByte('\n');
+    }
+
+    /**
+     * Write as much as the channel will take, keeping whatever it didn't for next time.  Frames may still be appended
+     * meanwhile.
+     *
+     * @return Number of bytes still waiting to be written.
+     */
+    public int writeTo(WritableByteChannel channel) throws IOException {
+        int end = buffer.position();
+        buffer.limit(end);
+        buffer.position(written);
+        try {
+            channel.write(buffer);
+        } finally {
+            written = buffer.position();
+            buffer.limit(buffer.capacity());
+            buffer.position(end);
+        }
+        if (written == end) {
+            clear();
+            return 0;
+        }
+
+        // Only shift the remainder down once most of the buffer is spent, not after every partial write.
+        if (written > buffer.capacity() / 2) {
+            buffer.limit(end);
+            buffer.position(written);
+            buffer.compact();
+            written = 0;
+        }
+        return pending();
+    }
+
+    /**
+     * @return Number of bytes encoded but not yet taken by {@link #writeTo}.
+     */
+    public int pending() {
+        return buffer.position() - written;
+    }
+
+    /**
+     * @return Number of bytes encoded since the last clear.
+     */
+    public int length() {
+        return buffer.position();
+    }
+
+    /**
+     * @return The backing array of a heap encoder, holding {@link #length()} encoded bytes from offset zero.
+     */
+    public byte[] array() {
+        return buffer.array();
+    }
+
+    /**
+     * Leave room for 'count' bytes, filled in later through {@link #buffer()}, such as a packet header.
+     */
+    void skip(int count) {
+        ensure(count);
+        buffer.position(buffer.position() + count);
+    }
+
+    /**
+     * @return The buffer, holding {@link #length()} encoded bytes from offset zero.  Replaced as it grows, so don't
+     * keep it across encodes.
+     */
+    ByteBuffer buffer() {
+        return buffer;
+    }
+
+    //--------------------------------------------------------------------------------------------------------- Internal
+
+    private ByteBuffer allocate(int capacity) {
+        return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+    }
+
+    private void ensure(int count) {
+        if (buffer.remaining() < count) {
+            ByteBuffer bigger = allocate(Math.max(buffer.capacity() * 2, buffer.position() + count));
+            buffer.flip();
+            bigger.put(buffer);
+            buffer = bigger;
+        }
+    }
+
+    private void putHeader(String key, String value) {
+        if (HeaderSymbols.CONTENT_LENGTH.equals(key))
+            return; // Always recomputed from the actual content.
+        putString(key);
+        putByte(':');
+        if (value != null)
+            putString(value);
+        putByte('\n');
+    }
+
+    private void putByte(int b) {
+        ensure(1);
+        buffer.put((byte) b);
+    }
+
+    @SuppressWarnings("deprecation")
+    private void putString(String s) {
+        int length = s.length();
+        ensure(length);
+        if (buffer.hasArray()) {
+            int position = buffer.position();
+            s.getBytes(0, length, buffer.array(), buffer.arrayOffset() + position);
+            buffer.position(position + length);
+        } else {
+            for (int i = 0; i < length; i++) {
+                buffer.put((byte) s.charAt(i));
+            }
+        }
+    }
+
+    private void putInt(int value) {
+        // Digits are produced backwards, so count them first and fill in from the end.
+        int digits = 1;
+        for (int v = value; v >= 10; v /= 10) {
+            digits++;
+        }
+        int position = buffer.position();
+        for (int i = position + digits - 1; i >= position; i--) {
+            buffer.put(i, (byte) ('0' + value % 10));
+            value /= 10;
+        }
+        buffer.position(position + digits);
+    }
+}
@@ -0,0 +1,251 @@
+package stomp;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Compact Map for frame headers.
+ * <p/>
+ * STOMP frames carry a handful of headers, for which a HashMap's table, entry objects and rehashing are all overhead.
+ * This keeps keys, their hash codes and values in parallel arrays and finds keys with a linear scan comparing hash
+ * codes first, which for a few dozen entries beats hashing into buckets.  Entries keep insertion order, so frames are
+ * encoded deterministically, and {@link #clear()} keeps the arrays for reuse.
+ * <p/>
+ * Null keys are not supported.  Like HashMap, not thread-safe.
+ */
+final class HeaderMap extends AbstractMap<String, String> {
+
+    private String[] keys;
+    private int[] hashes;
+    private String[] values;
+    private int size;
+    private int modCount;
+    private Set<Map.Entry<String, String>> entrySet;
+
+    HeaderMap() {
+        this(8);
+    }
+
+    HeaderMap(int capacity) {
+        keys = new String[capacity];
+        hashes = new int[capacity];
+        values = new String[capacity];
+    }
+
+    HeaderMap(Map<String, String> headers) {
+        this(Math.max(4, headers.size()));
+        putAll(headers);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) != -1;
+    }
+
+    @Override
+    public String get(Object key) {
+        int i = indexOf(key);
+        return i == -1 ? null : values[i];
+    }
+
+    @Override
+    public String put(String key, String value) {
+        if (key == null)
+            throw new NullPointerException("Null header key.");
+        int i = indexOf(key);
+        if (i != -1) {
+            String old = values[i];
+            values[i] = value;
+            return old;
+        }
+        if (size == keys.length)
+            grow();
+        keys[size] = key;
+        hashes[size] = key.hashCode();
+        values[size] = value;
+        size++;
+        modCount++;
+        return null;
+    }
+
+    @Override
+    public String remove(Object key) {
+        int i = indexOf(key);
+        if (i == -1)
+            return null;
+        String old = values[i];
+        removeAt(i);
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        for (int i = 0; i < size; i++) {
+            keys[i] = null;
+            values[i] = null;
+        }
+        size = 0;
+        modCount++;
+    }
+
+    @Override
+    public Set<Map.Entry<String, String>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Map.Entry<String, String>>() {
+                @Override
+                public Iterator<Map.Entry<String, String>> iterator() {
+                    return new EntryIterator();
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+
+                @Override
+                public void clear() {
+                    HeaderMap.this.clear();
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    //---------------------------------------------------------------------------------- Garbage-free access by index
+
+    String keyAt(int i) {
+        return keys[i];
+    }
+
+    String valueAt(int i) {
+        return values[i];
+    }
+
+    //--------------------------------------------------------------------------------------------------------- Internal
+
+    private int indexOf(Object key) {
+        if (key == null)
+            return -1;
+        int hash = key.hashCode();
+        for (int i = 0; i < size; i++) {
+            if (hashes[i] == hash && (keys[i] == key || keys[i].equals(key)))
+                return i;
+        }
+        return -1;
+    }
+
+    private void removeAt(int i) {
+        int moved = size - i - 1;
+        if (moved > 0) {
+            System.arraycopy(keys, i + 1, keys, i, moved);
+            System.arraycopy(hashes, i + 1, hashes, i, moved);
+            System.arraycopy(values, i + 1, values, i, moved);
+        }
+        size--;
+        keys[size] = null;
+        values[size] = null;
+        modCount++;
+    }
+
+    private void grow() {
+        int capacity = Math.max(4, keys.length * 2);
+        String[] newKeys = new String[capacity];
+        int[] newHashes = new int[capacity];
+        String[] newValues = new String[capacity];
+        System.arraycopy(keys, 0, newKeys, 0, size);
+        System.arraycopy(hashes, 0, newHashes, 0, size);
+        System.arraycopy(values, 0, newValues, 0, size);
+        keys = newKeys;
+        hashes = newHashes;
+        values = newValues;
+    }
+
+    private final class EntryIterator implements Iterator<Map.Entry<String, String>> {
+
+        private int next;
+        private int last = -1;
+        private int expectedModCount = modCount;
+
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        public Map.Entry<String, String> next() {
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            if (next >= size)
+                throw new NoSuchElementException();
+            last = next++;
+            return new Entry(last);
+        }
+
+        public void remove() {
+            if (last == -1)
+                throw new IllegalStateException();
+            if (modCount != expectedModCount)
+                throw new ConcurrentModificationException();
+            removeAt(last);
+            next = last;
+            last = -1;
+            expectedModCount = modCount;
+        }
+    }
+
+    private final class Entry implements Map.Entry<String, String> {
+
+        private final int index;
+        private final String key;
+
+        private Entry(int index) {
+            this.index = index;
+            this.key = keys[index];
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public String getValue() {
+            return keys[index] == key ? values[index] : get(key);
+        }
+
+        public String setValue(String value) {
+            if (keys[index] == key) {
+                String old = values[index];
+                values[index] = value;
+                return old;
+            }
+            return put(key, value);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Map.Entry))
+                return false;
+            Map.Entry<?, ?> e = (Map.Entry<?, ?>) o;
+            String value = getValue();
+            return key.equals(e.getKey()) && (value == null ? e.getValue() == null : value.equals(e.getValue()));
+        }
+
+        @Override
+        public int hashCode() {
+            String value = getValue();
+            return key.hashCode() ^ (value == null ? 0 : value.hashCode());
+        }
+
+        @Override
+        public String toString() {
+            return key + "=" + getValue();
+        }
+    }
+}
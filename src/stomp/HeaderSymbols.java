@@ -0,0 +1,135 @@
+package stomp;
+
+/**
+ * Canonical String instances for header keys and values seen on the receive path.
+ * <p/>
+ * Raw header bytes are matched against well-known keys and a small cache of recently seen strings without allocating,
+ * so the same destination or subscription arriving over and over decodes to the very same String (with its hash code
+ * already computed).  Only values of keys that tend to repeat are cached; message ids and the like would just churn
+ * the cache.
+ * <p/>
+ * Hashes are computed over the bytes exactly as String.hashCode() would over the ISO-8859-1 decoded text, so cached
+ * strings can be compared by hash first.
+ * <p/>
+ * There is one instance per FrameDecoder, also used by its frames to decode headers lazily on whatever thread asks.
+ * The caches are not synchronized, but every slot is verified against the bytes before being used, and Strings are
+ * immutable, so a racing thread can at worst miss a cache hit or evict an entry.
+ */
+final class HeaderSymbols {
+
+    static final String CONTENT_LENGTH = "content-length";
+
+    private static final String[] KEYS = {
+            Message.DESTINATION, Message.MESSAGE_ID, "subscription", CONTENT_LENGTH, Message.EXPIRES, Message.PRIORITY,
+            Message.PERSISTENT, Message.TYPE, Message.CORRELATION_ID, Message.REPLY_TO, Message.CLIENT_ID,
+            "receipt-id", "receipt", "timestamp", "content-type", "redelivered", "transaction", "ack", "id",
+            "login", "passcode", "session", "message",
+    };
+
+    // Keys whose values are worth caching.
+    private static final String[] CACHED_VALUE_KEYS = {
+            Message.DESTINATION, "subscription", Message.PRIORITY, Message.PERSISTENT, Message.TYPE, Message.REPLY_TO,
+            Message.CLIENT_ID, "content-type", "redelivered", "ack", "session",
+    };
+
+    // Open addressed table of the well-known keys, shared by all instances.
+    private static final String[] WELL_KNOWN = new String[64];
+    private static final boolean[] WELL_KNOWN_CACHED = new boolean[WELL_KNOWN.length];
+
+    static {
+        for (String key : KEYS) {
+            int slot = key.hashCode() & (WELL_KNOWN.length - 1);
+            while (WELL_KNOWN[slot] != null) {
+                slot = (slot + 1) & (WELL_KNOWN.length - 1);
+            }
+            WELL_KNOWN[slot] = key;
+            for (String cached : CACHED_VALUE_KEYS) {
+                if (cached.equals(key))
+                    WELL_KNOWN_CACHED[slot] = true;
+            }
+        }
+    }
+
+    // Direct-mapped caches of recently seen strings, the newest string wins a slot.
+    private final String[] keys = new String[64];
+    private final String[] values = new String[256];
+
+    /**
+     * @return The canonical String for a header key.
+     */
+    String key(byte[] bytes, int offset, int length) {
+        int hash = hash(bytes, offset, length);
+        int slot = hash & (WELL_KNOWN.length - 1);
+        String key;
+        while ((key = WELL_KNOWN[slot]) != null) {
+            if (key.hashCode() == hash && matches(bytes, offset, length, key))
+                return key;
+            slot = (slot + 1) & (WELL_KNOWN.length - 1);
+        }
+        return lookup(keys, hash, bytes, offset, length);
+    }
+
+    /**
+     * @param key The header key.
+     * @return The header value, canonical if it belongs to a key whose values are cached.
+     */
+    String value(String key, byte[] bytes, int offset, int length) {
+        if (!isCached(key))
+            return string(bytes, offset, length);
+        return lookup(values, hash(bytes, offset, length), bytes, offset, length);
+    }
+
+    /**
+     * Command and header text is treated as ISO-8859-1, matching what Frame.write emits.
+     */
+    @SuppressWarnings("deprecation")
+    static String string(byte[] bytes, int offset, int length) {
+        return new String(bytes, 0, offset, length);
+    }
+
+    /**
+     * @return True if the bytes are the ISO-8859-1 encoding of the string.
+     */
+    static boolean matches(byte[] bytes, int offset, int length, String s) {
+        if (s.length() != length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if ((bytes[offset + i] & 0xff) != s.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    //--------------------------------------------------------------------------------------------------------- Internal
+
+    private static boolean isCached(String key) {
+        int hash = key.hashCode();
+        int slot = hash & (WELL_KNOWN.length - 1);
+        String known;
+        while ((known = WELL_KNOWN[slot]) != null) {
+            if (known == key || (known.hashCode() == hash && known.equals(key)))
+                return WELL_KNOWN_CACHED[slot];
+            slot = (slot + 1) & (WELL_KNOWN.length - 1);
+        }
+        return false;
+    }
+
+    private static String lookup(String[] cache, int hash, byte[] bytes, int offset, int length) {
+        int slot = (hash ^ (hash >>> 16)) & (cache.length - 1);
+        String s = cache[slot];
+        if (s != null && s.hashCode() == hash && matches(bytes, offset, length, s))
+            return s;
+        s = string(bytes, offset, length);
+        cache[slot] = s;
+        return s;
+    }
+
+    private static int hash(byte[] bytes, int offset, int length) {
+        int hash = 0;
+        for (int i = offset, end = offset + length; i < end; i++) {
+            hash = 31 * hash + (bytes[i] & 0xff);
+        }
+        return hash;
+    }
+
+}
@@ -2,23 +2,37 @@ package stomp;
 
 import java.io.IOException;
 import java.nio.charset.Charset;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 public final class Message {
 
     private static final Charset UTF_8 = Charset.forName("UTF-8");
 
-    // Message properties
-    final Map<String, String> headers;
+    // Message properties, left undecoded in the frame for received messages until the whole map is asked for.
+    private Map<String, String> headers;
+    private Frame frame;
 
-    // If content has been set
+    // If content has been set.  Pooled bodies may be longer than the content.
     byte[] content;
+    int contentLength;
+
+    // Pooled bodies go back to the pool when the last reference is released.
+    private BodyPool pool;
+    private volatile int references;
+    private Object leakToken;
+    private static final AtomicIntegerFieldUpdater<Message> REFERENCES =
+            AtomicIntegerFieldUpdater.newUpdater(Message.class, "references");
 
     // If received on a connection, which connection.
     private Connection connection;
 
+    // If received for a subscription: which, its sequence number there (for cumulative acks), and bytes received.
+    Subscription subscription;
+    long sequence;
+    final int size;
+
     public static final String MESSAGE_ID = "message-id";
     public static final String DESTINATION = "destination";
     public static final String CORRELATION_ID = "correlation-id";
@@ -37,20 +51,32 @@ public final class Message {
 
     Message(Connection connection, Frame frame) {
         this.connection = connection;
-        headers = frame.getHeaders();
+        this.frame = frame;
         content = frame.getContent();
+        contentLength = frame.getContentLength();
+        size = contentLength + frame.rawHeadersLength();
+        if (frame.pool != null && content != null) {
+            pool = frame.pool;
+            references = 1;
+            leakToken = pool.track(this, contentLength);
+        }
     }
 
     public Message() {
-        headers = new HashMap<String, String>();
+        headers = new HeaderMap();
+        size = 0;
     }
 
+    /**
+     * Acknowledge the message, and in client ack mode every earlier one on the same subscription.  With "ackDelay" on
+     * the connection and a negative 'waitMillis', the ack is queued and written shortly after along with others.
+     */
     public void acknowledge(long waitMillis) throws IOException {
-        connection.ack(getProperty(MESSAGE_ID), waitMillis);
+        connection.ack(this, waitMillis);
     }
 
     public void setProperty(String key, String value) {
-        headers.put(key, value);
+        headers().put(key, value);
     }
 
     public void setProperties (String...args) {
@@ -62,36 +88,101 @@ public final class Message {
     }
 
     public String getProperty(String key) {
-        return headers.get(key);
+        return headers == null ? frame.getHeader(key) : headers.get(key);
     }
 
     public Iterator<String> getPropertyNames() {
-        return headers.keySet().iterator();
+        return headers().keySet().iterator();
     }
 
     public boolean propertyExists(String key) {
-        return headers.containsKey(key);
+        return headers == null ? frame.getHeader(key) != null : headers.containsKey(key);
     }
 
+    /**
+     * Get the content.  With "bodyPool=true" on the connection the array may be longer than the content, so use
+     * {@link #getContentLength()}, and the array belongs to the pool once the message is released.
+     */
     public byte[] getContent() {
         return content;
     }
 
+    public int getContentLength() {
+        return contentLength;
+    }
+
     public String getContentUtf8() {
         if (content == null)
             return null;
         else
-            return new String (content, UTF_8);
+            return new String (content, 0, contentLength, UTF_8);
     }
 
     public void setContent(byte[] content) {
+        detach();
         this.content = content;
+        this.contentLength = content == null ? 0 : content.length;
+    }
+
+    void received(Subscription subscription) {
+        this.subscription = subscription;
+        sequence = subscription.received();
+    }
+
+    /**
+     * Keep a received message beyond Consumer.onMessage().  Only matters with "bodyPool=true" on the connection,
+     * where the body is otherwise returned to the pool as soon as onMessage() returns; each retain() must then be
+     * matched by a {@link #release()}.
+     */
+    public void retain() {
+        if (pool != null) {
+            int count;
+            do {
+                count = references;
+                if (count <= 0)
+                    throw new IllegalStateException("Message already released.");
+            } while (!REFERENCES.compareAndSet(this, count, count + 1));
+        }
+    }
+
+    /**
+     * Release a reference to a received message.  When the last reference goes, a pooled body is returned to the
+     * pool and the message no longer has content.  A no-op for messages without a pooled body.
+     */
+    public void release() {
+        if (pool != null) {
+            int count = REFERENCES.decrementAndGet(this);
+            if (count == 0) {
+                BodyPool pool = this.pool;
+                byte[] body = content;
+                detach();
+                content = null;
+                contentLength = 0;
+                pool.release(body);
+            } else if (count < 0) {
+                throw new IllegalStateException("Message released more times than retained.");
+            }
+        }
+    }
+
+    Map<String, String> headers() {
+        if (headers == null)
+            headers = frame.getHeaders();
+        return headers;
     }
 
     public void setContentUtf8(String content) {
-        if (content != null)
-            this.content = content.getBytes(UTF_8);
-        else
-            this.content = null;
+        setContent(content == null ? null : content.getBytes(UTF_8));
+    }
+
+    /**
+     * Stop treating the body as pooled.  It is left to the GC, as the application may still hold the array.
+     */
+    private void detach() {
+        if (pool != null) {
+            pool.untrack(leakToken);
+            pool = null;
+            leakToken = null;
+        }
     }
 }
@@ -0,0 +1,42 @@
+package stomp;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Messages received for one subscription, in order, handed to a {@link BatchConsumer} together.  Like single messages,
+ * pooled bodies go back to the pool once onMessages returns unless retained.
+ */
+public final class MessageBatch implements Iterable<Message> {
+
+    private final List<Message> messages;
+
+    MessageBatch(List<Message> messages) {
+        this.messages = Collections.unmodifiableList(messages);
+    }
+
+    public int size() {
+        return messages.size();
+    }
+
+    public Message get(int index) {
+        return messages.get(index);
+    }
+
+    public List<Message> getMessages() {
+        return messages;
+    }
+
+    public Iterator<Message> iterator() {
+        return messages.iterator();
+    }
+
+    /**
+     * Acknowledge the whole batch with a single ACK of its last message, acks in client mode being cumulative.
+     */
+    public void acknowledge(long waitMillis) throws IOException {
+        messages.get(messages.size() - 1).acknowledge(waitMillis);
+    }
+}
@@ -0,0 +1,322 @@
+package stomp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * TCP connection served by a shared {@link NioEventLoop} rather than a thread of its own, so that an application can
+ * hold thousands of connections on a few threads.  Chosen with "io=nio" on the url or the "stomp.io=nio" system
+ * property.
+ * <p/>
+ * Senders write straight to the channel.  Whatever the socket doesn't take is kept in the encoder's buffer and
+ * written by the loop when the socket drains; a sender finding more than MAX_PENDING bytes already waiting blocks
+ * until the loop catches up (except on the loop's own thread, from a consumer, which must never block).
+ * <p/>
+ * Received frames are dispatched on the loop's thread.  While paused (or over the buffered bytes high water mark) the
+ * loop stops reading this channel, leaving the backlog to TCP flow control, instead of parking the thread.
+ * <p/>
+ * A "stomp+ssl" url goes through a {@link TlsChannel}.
+ */
+final class NioConnection extends Connection implements NioEventLoop.Handler {
+
+    private static final int MAX_PENDING = 1024 * 1024;
+
+    private final SocketChannel channel;
+    private final TlsChannel tls; // Null for plain tcp
+    private final NioEventLoop loop;
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final Lock writeLock = new ReentrantLock();
+    private final Condition drained = writeLock.newCondition(); // Pending output fell below MAX_PENDING / 2
+    private final FrameEncoder encoder = new FrameEncoder(8192, true); // Guarded by 'writeLock'
+    private ByteBuffer input = ByteBuffer.allocate(8192); // Only touched by the loop, kept in write mode
+    private SelectionKey key; // Guarded by 'writeLock'
+    private volatile boolean writePending; // Changed holding 'writeLock'
+    private volatile boolean closedChannel = false;
+
+    NioConnection(URI uri, SocketChannel channel, Properties properties) throws IOException {
+        super(uri, properties);
+        decoder.setBodyPool(bodyPool);
+        this.channel = channel;
+
+        Socket socket = channel.socket();
+        if (properties.containsKey("tcpNoDelay")) {
+            socket.setTcpNoDelay("true".equals(properties.getProperty("tcpNoDelay")));
+        }
+        if (properties.containsKey("soLinger")) {
+            socket.setSoLinger(true, Integer.parseInt (properties.getProperty("soLinger")));
+        }
+
+        channel.configureBlocking(false);
+        if ("stomp+ssl".equals(uri.getScheme())) {
+            tls = new TlsChannel(channel, TlsChannel.createEngine(properties,
+                    (InetSocketAddress) socket.getRemoteSocketAddress()));
+            input = ByteBuffer.allocate(16 * 1024 + 8192); // Room for a whole record's plain text and then some
+        } else {
+            tls = null;
+        }
+        loop = NioEventLoop.next();
+        loop.register(channel, this);
+
+        // Connect to the server
+        connect(properties);
+    }
+
+    @Override
+    protected void readResumed() {
+        loop.execute(new Runnable() {
+            public void run() {
+                resume();
+            }
+        });
+    }
+
+    @Override
+    public void testConnection() {
+        writeLock.lock();
+        try {
+            encoder.heartbeat(); // per stomp spec 1.1, a single newline
+            flush();
+        } catch (IOException e) {
+            publishError("Error in heartbeat: " + e, e);
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    protected void transmit(Frame frame, long waitMillis) throws IOException {
+        writeLock.lock();
+        try {
+            awaitRoom();
+            encoder.encode(frame);
+            flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    protected void transmit(List<Frame> frames) throws IOException {
+        writeLock.lock();
+        try {
+            awaitRoom();
+            for (Frame frame : frames) {
+                encoder.encode(frame);
+            }
+            flush();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    @Override
+    protected void disconnect() {
+        // According to the STOMP design, the clients sends a DISCONNECT.
+        try {
+            transmit(new Frame(Frame.TYPE_DISCONNECT, null, null), -1);
+        } catch (IOException e) {
+            publishError("Disconnect failed (ignored): " + e, e);
+        }
+
+        // Give the loop a moment to get it out of the door.
+        if (!loop.inEventLoop()) {
+            writeLock.lock();
+            try {
+                long waitOver = System.currentTimeMillis() + 3000;
+                while (writePending && !closedChannel && System.currentTimeMillis() < waitOver) {
+                    drained.await(100, TimeUnit.MILLISECONDS);
+                }
+            } catch (InterruptedException e) {
+                // Close anyway.
+            } finally {
+                writeLock.unlock();
+            }
+        }
+        if (tls != null)
+            tls.shutdownOutput();
+        closeChannel();
+    }
+
+    @Override
+    protected String createSubscriptionId(String destination) {
+        return nextSubscriptionId();
+    }
+
+    @Override
+    protected boolean isConnectionThread() {
+        return loop.inEventLoop();
+    }
+
+    @Override
+    protected void awaitResume() {
+        // Never park the loop, onReadable stops reading instead.
+    }
+
+    //------------------------------------------------------------------------------------------- NioEventLoop.Handler
+
+    public void onRegistered(SelectionKey key) {
+        writeLock.lock();
+        try {
+            this.key = key;
+            if (writePending)
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        } finally {
+            writeLock.unlock();
+        }
+        if (closedChannel)
+            key.cancel();
+    }
+
+    public void onReadable() throws IOException {
+        if (tls == null) {
+            if (channel.read(input) == -1) {
+                closeChannel();
+                return;
+            }
+            decode();
+            return;
+        }
+
+        // Plain text may be left over from a record bigger than the room in the buffer.
+        do {
+            if (tls.read(input) == -1) {
+                closeChannel();
+                return;
+            }
+            decode();
+        } while (tls.hasInput() && !isReadSuspended() && !closedChannel);
+
+        // The handshake may have moved on, letting stalled output go.
+        if (writePending || tls.hasOutput())
+            onWritable();
+    }
+
+    public void onWritable() throws IOException {
+        writeLock.lock();
+        try {
+            boolean socketFull = writeOut();
+            int remaining = encoder.pending();
+            writePending = remaining > 0 || socketFull;
+            if (!socketFull)
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            else if ((key.interestOps() & SelectionKey.OP_WRITE) == 0)
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            if (remaining < MAX_PENDING / 2)
+                drained.signalAll();
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    public void onFailure(IOException e) {
+        try {
+            if (!closedChannel)
+                publishError(e.getMessage(), e);
+        } finally {
+            closeChannel();
+        }
+    }
+
+    //--------------------------------------------------------------------------------------------------------- Internal
+
+    /**
+     * Block while too much output is pending, except on the loop.  Caller holds the write lock.
+     */
+    private void awaitRoom() throws IOException {
+        if (loop.inEventLoop())
+            return;
+        while (encoder.pending() > MAX_PENDING && !closedChannel) {
+            try {
+                drained.await(1000, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted waiting to send.");
+            }
+        }
+    }
+
+    /**
+     * Write what the socket will take now, leaving the rest to the loop.  Caller holds the write lock.
+     */
+    private void flush() throws IOException {
+        if (writePending)
+            return; // Already queued behind earlier output, the loop will get to it.
+        boolean socketFull = writeOut();
+        if (encoder.pending() > 0 || socketFull) {
+            writePending = true;
+            if (socketFull && key != null)
+                loop.interest(key, SelectionKey.OP_WRITE, true);
+        }
+    }
+
+    /**
+     * Write what the socket will take now.  Caller holds the write lock.
+     *
+     * @return True if output is left over for when the socket drains, false if done or waiting on the TLS handshake
+     * (which the loop carries on with as it reads).
+     */
+    private boolean writeOut() throws IOException {
+        if (tls == null)
+            return encoder.writeTo(channel) > 0;
+        int remaining = encoder.writeTo(tls);
+        return tls.hasOutput() || (remaining > 0 && !tls.isStalled());
+    }
+
+    private void decode() throws IOException {
+        input.flip();
+        Frame frame;
+        while (!isReadSuspended() && !closedChannel && (frame = decoder.decode(input)) != null) {
+            frameReceived(frame);
+        }
+        flushBatches();
+        input = FrameDecoder.compact(input);
+        if (isReadSuspended() && key.isValid())
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+    }
+
+    private void resume() {
+        if (closedChannel || isReadSuspended() || key == null || !key.isValid())
+            return;
+        key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        try {
+            if (tls != null)
+                onReadable(); // Frames already buffered when paused, also as plain text in the TLS channel.
+            else
+                decode(); // Frames already buffered when paused.
+        } catch (IOException e) {
+            key.cancel();
+            onFailure(e);
+        }
+    }
+
+    private void closeChannel() {
+        closedChannel = true;
+        closed = true;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        writeLock.lock();
+        try {
+            drained.signalAll();
+        } finally {
+            writeLock.unlock();
+        }
+
+        // Wake anyone waiting to connect, or on receipts.
+        failReceipts("Connection closed.");
+        signalStatus();
+    }
+}
@@ -0,0 +1,161 @@
+package stomp;
+
+import java.io.IOException;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A selector thread serving many NioConnections.
+ * <p/>
+ * Loops are shared process-wide: there are "stomp.nio.threads" of them (system property, default is the number of
+ * processors up to 4), started on first use as daemon threads, and connections are spread across them round-robin.
+ * Each connection's reads, frame decoding and dispatch to consumers happen on its loop's thread, so as with the
+ * blocking transport a slow consumer holds up delivery, here for every connection sharing the loop.
+ */
+final class NioEventLoop implements Runnable {
+
+    /**
+     * Callbacks for a channel registered with a loop, always made on the loop's thread.
+     */
+    interface Handler {
+        void onRegistered(SelectionKey key);
+        void onReadable() throws IOException;
+        void onWritable() throws IOException;
+        void onFailure(IOException e);
+    }
+
+    private static NioEventLoop[] loops;
+    private static int nextLoop;
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+    private final Thread thread;
+
+    private NioEventLoop(int index) throws IOException {
+        selector = Selector.open();
+        thread = new Thread(this, "STOMP NioEventLoop-" + index);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * @return The next loop to assign a connection to.
+     */
+    static synchronized NioEventLoop next() throws IOException {
+        if (loops == null) {
+            int count = Math.min(4, Runtime.getRuntime().availableProcessors());
+            String s = System.getProperty("stomp.nio.threads");
+            if (s != null)
+                count = Integer.parseInt(s);
+            loops = new NioEventLoop[Math.max(1, count)];
+        }
+        int i = nextLoop;
+        nextLoop = (nextLoop + 1) % loops.length;
+        if (loops[i] == null)
+            loops[i] = new NioEventLoop(i);
+        return loops[i];
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Run the task on the loop's thread, soon.
+     */
+    void execute(Runnable task) {
+        tasks.add(task);
+        if (!inEventLoop())
+            selector.wakeup();
+    }
+
+    /**
+     * Register the (non-blocking) channel for reading.  This happens on the loop's thread, which then hands the key
+     * to the handler, so the channel may not be registered yet when this returns.
+     */
+    void register(final SelectableChannel channel, final Handler handler) {
+        execute(new Runnable() {
+            public void run() {
+                try {
+                    handler.onRegistered(channel.register(selector, SelectionKey.OP_READ, handler));
+                } catch (IOException e) {
+                    handler.onFailure(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Change the interest set of a key from any thread.
+     */
+    void interest(final SelectionKey key, final int ops, final boolean on) {
+        execute(new Runnable() {
+            public void run() {
+                try {
+                    if (key.isValid())
+                        key.interestOps(on ? key.interestOps() | ops : key.interestOps() & ~ops);
+                } catch (CancelledKeyException e) {
+                    // Closed meanwhile.
+                }
+            }
+        });
+    }
+
+    public void run() {
+        while (true) {
+            try {
+                // Don't block if a task was queued from this thread, it had no need to wake us.
+                if (tasks.isEmpty())
+                    selector.select();
+                else
+                    selector.selectNow();
+            } catch (IOException e) {
+                System.err.printf("STOMP selector failed: %s\n", e);
+                continue;
+            }
+
+            Runnable task;
+            while ((task = tasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                Handler handler = (Handler) key.attachment();
+                try {
+                    if (key.isValid() && key.isWritable())
+                        handler.onWritable();
+                    if (key.isValid() && key.isReadable())
+                        handler.onReadable();
+                } catch (CancelledKeyException e) {
+                    // Closed meanwhile.
+                } catch (IOException e) {
+                    fail(key, handler, e);
+                } catch (RuntimeException e) {
+                    // A bug in one connection, or a consumer's onError throwing, mustn't stop the others.
+                    fail(key, handler, new IOException(e.toString(), e));
+                }
+            }
+        }
+    }
+
+    private static void fail(SelectionKey key, Handler handler, IOException e) {
+        key.cancel();
+        try {
+            handler.onFailure(e);
+        } catch (RuntimeException ex) {
+            ex.printStackTrace();
+        }
+    }
+}
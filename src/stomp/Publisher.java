@@ -0,0 +1,118 @@
+package stomp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Confirmed publishing without a round trip per message: up to 'window' receipted sends are in flight at once, and
+ * {@link #publish} only blocks while the window is full.
+ * <p/>
+ * Each message's outcome is reported to the listener, on the connection's reader thread: confirmed when its receipt
+ * arrives, failed if the connection closes first or no receipt comes within the connection's "receiptTimeout".
+ * <p/>
+ * Thread-safe; any number of threads may publish through the same window.
+ */
+public final class Publisher {
+
+    /**
+     * Outcome of each published message.  Called on the connection's reader thread, so keep it short.
+     */
+    public interface Listener {
+        void onConfirmed(String destination, Message message);
+        void onFailed(String destination, Message message, IOException e);
+    }
+
+    private final Connection connection;
+    private final int window;
+    private final Semaphore permits;
+    private final Listener listener;
+
+    /**
+     * @param window   Most unconfirmed messages at any time.
+     * @param listener Told of each message's outcome, may be null.
+     */
+    public Publisher(Connection connection, int window, Listener listener) {
+        if (window < 1)
+            throw new IllegalArgumentException("Window must be at least 1: " + window);
+        this.connection = connection;
+        this.window = window;
+        this.permits = new Semaphore(window);
+        this.listener = listener;
+    }
+
+    /**
+     * Send the message, first waiting for room in the window if need be.
+     */
+    public void publish(final String destination, final Message message) throws IOException {
+        acquire();
+        final ReceiptFuture receipt;
+        try {
+            receipt = connection.sendAsync(destination, message);
+        } catch (IOException e) {
+            permits.release();
+            throw e;
+        }
+        receipt.addListener(new Runnable() {
+            public void run() {
+                permits.release();
+                if (listener != null) {
+                    IOException failure = receipt.getFailure();
+                    if (failure == null) {
+                        listener.onConfirmed(destination, message);
+                    } else {
+                        listener.onFailed(destination, message, failure);
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Wait for every message published so far to be confirmed (or failed).
+     *
+     * @throws IOException If some are still outstanding after 'waitMillis'.
+     */
+    public void flush(long waitMillis) throws IOException {
+        long waitOver = System.currentTimeMillis() + waitMillis;
+        int acquired = 0;
+        try {
+            while (acquired < window) {
+                if (System.currentTimeMillis() > waitOver)
+                    throw new IOException("Timeout waiting for " + (window - acquired) + " confirms.");
+                if (permits.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                    acquired++;
+                } else {
+                    connection.purgeReceipts();
+                }
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        } finally {
+            permits.release(acquired);
+        }
+    }
+
+    /**
+     * @return Number of messages sent but not yet confirmed.
+     */
+    public int getOutstanding() {
+        return window - permits.availablePermits();
+    }
+
+    //--------------------------------------------------------------------------------------------------------- Internal
+
+    private void acquire() throws IOException {
+        try {
+            // Wake now and then to expire receipts that will never come, or a full window would wait forever.
+            while (!permits.tryAcquire(100, TimeUnit.MILLISECONDS)) {
+                if (connection.isClosed())
+                    throw new IOException("Connection closed.");
+                connection.purgeReceipts();
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+    }
+}
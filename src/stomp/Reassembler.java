@@ -0,0 +1,114 @@
+package stomp;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Puts UDP packets split into fragments back together, see {@link UdpConnection}.
+ * <p/>
+ * Messages being reassembled are held oldest first, at most "reassemblyMessages" of them (default 64) and
+ * "reassemblyBytes" in all (default 16M).  Making room for a new message drops the oldest, as does a fragment arriving
+ * "reassemblyTimeout" milliseconds (default 2000) after the first of its message: either way that message is lost,
+ * like a packet.  Messages too big for the whole allowance are dropped straight away.
+ * <p/>
+ * Not thread-safe, used by the connection's reader only.
+ */
+final class Reassembler {
+
+    private final int maxMessages;
+    private final long maxBytes;
+    private final long timeoutNanos;
+
+    // Few enough to scan, and no key objects per fragment.
+    private final List<Partial> partials = new ArrayList<Partial>();
+    private long bytes;
+
+    Reassembler(int maxMessages, long maxBytes, long timeoutMillis) {
+        this.maxMessages = maxMessages;
+        this.maxBytes = maxBytes;
+        this.timeoutNanos = timeoutMillis * 1000000L;
+    }
+
+    /**
+     * Add a fragment.
+     *
+     * @param fragment The fragment's bytes, from position to limit.  Consumed.
+     * @return The whole message, once this was the last fragment missing, else null.
+     */
+    byte[] add(long sender, int messageId, int index, int count, int length, ByteBuffer fragment) {
+        long now = System.nanoTime();
+        while (!partials.isEmpty() && now - partials.get(0).started > timeoutNanos) {
+            remove(0);
+        }
+
+        if (count < 1 || index >= count || length < count || length > maxBytes)
+            return null;
+        // Every fragment but the last is the same size.
+        int chunk = (length + count - 1) / count;
+        int offset = index * chunk;
+        if (offset >= length || fragment.remaining() != Math.min(chunk, length - offset))
+            return null;
+
+        int i = indexOf(sender, messageId);
+        Partial partial;
+        if (i == -1) {
+            while (!partials.isEmpty() && (partials.size() >= maxMessages || bytes + length > maxBytes)) {
+                remove(0);
+            }
+            partial = new Partial(sender, messageId, count, length, now);
+            partials.add(partial);
+            bytes += length;
+            i = partials.size() - 1;
+        } else {
+            partial = partials.get(i);
+            if (partial.count != count || partial.data.length != length) {
+                remove(i); // Not what the other fragments said, give up on it.
+                return null;
+            }
+        }
+
+        if (partial.received[index])
+            return null; // Duplicate
+        partial.received[index] = true;
+        fragment.get(partial.data, offset, fragment.remaining());
+        if (++partial.receivedCount < count)
+            return null;
+        remove(i);
+        return partial.data;
+    }
+
+    //--------------------------------------------------------------------------------------------------------- Internal
+
+    private int indexOf(long sender, int messageId) {
+        for (int i = partials.size() - 1; i >= 0; i--) {
+            Partial partial = partials.get(i);
+            if (partial.messageId == messageId && partial.sender == sender)
+                return i;
+        }
+        return -1;
+    }
+
+    private void remove(int i) {
+        bytes -= partials.remove(i).data.length;
+    }
+
+    private static final class Partial {
+        final long sender;
+        final int messageId;
+        final int count;
+        final long started;
+        final byte[] data;
+        final boolean[] received;
+        int receivedCount;
+
+        Partial(long sender, int messageId, int count, int length, long started) {
+            this.sender = sender;
+            this.messageId = messageId;
+            this.count = count;
+            this.started = started;
+            data = new byte[length];
+            received = new boolean[count];
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package stomp;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The server's RECEIPT for a frame sent with {@link Connection#sendAsync}, {@link Connection#subscribeAsync} or
+ * {@link Connection#ackAsync}, completed by the connection's reader as soon as it arrives.
+ * <p/>
+ * Many frames can be in flight at once, each waited on separately.  A receipt that never comes fails the future: when
+ * a blocking wait times out, when the connection closes, or once it's older than the connection's "receiptTimeout"
+ * (milliseconds, default 60000).  Transports without receipts (UDP, the buffer) hand back futures already done.
+ * <p/>
+ * Don't wait on a future from a consumer's onMessage: that's the reader thread, which is the one that completes it.
+ */
+public final class ReceiptFuture implements Future<Void> {
+
+    private final String receiptId;
+    private final long expires;
+    private final ConcurrentMap<String, ReceiptFuture> pending;
+    private final CountDownLatch latch = new CountDownLatch(1);
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private volatile IOException failure;
+    private List<Runnable> listeners; // Guarded by 'this', null once done
+
+    ReceiptFuture(String receiptId, long expires, ConcurrentMap<String, ReceiptFuture> pending) {
+        this.receiptId = receiptId;
+        this.expires = expires;
+        this.pending = pending;
+    }
+
+    /**
+     * @return A future that is already done, for frames that get no receipt.
+     */
+    static ReceiptFuture completed() {
+        ReceiptFuture future = new ReceiptFuture(null, 0, null);
+        future.complete();
+        return future;
+    }
+
+    /**
+     * @return The "receipt" header sent with the frame, or null if none was.
+     */
+    public String getReceiptId() {
+        return receiptId;
+    }
+
+    /**
+     * @return True once the receipt arrived or the future failed.
+     */
+    public boolean isDone() {
+        return latch.getCount() == 0;
+    }
+
+    /**
+     * @return The reason the future failed, or null if it hasn't (yet).
+     */
+    public IOException getFailure() {
+        return failure;
+    }
+
+    /**
+     * Wait for the receipt.
+     *
+     * @param waitMillis How long to wait, 0 for no limit; on timeout the receipt is given up on.
+     * @throws IOException If the receipt didn't arrive in time, or the connection closed first.
+     */
+    public void await(long waitMillis) throws IOException {
+        try {
+            if (waitMillis == 0) {
+                latch.await();
+            } else if (!latch.await(waitMillis, TimeUnit.MILLISECONDS)) {
+                fail(new IOException("Timeout waiting for receipt '" + receiptId + "'."));
+            }
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        IOException e = failure;
+        if (e != null)
+            throw new IOException(e.getMessage(), e);
+    }
+
+    /**
+     * Run the listener once the future is done, on the thread that completes it (usually the connection's reader, so
+     * keep it short and don't block), or right away if it's done already.
+     */
+    public void addListener(Runnable listener) {
+        synchronized (this) {
+            if (!finished.get()) {
+                if (listeners == null)
+                    listeners = new ArrayList<Runnable>(1);
+                listeners.add(listener);
+                return;
+            }
+        }
+        run(listener);
+    }
+
+    /**
+     * Frames can't be recalled once sent, so this does nothing.
+     *
+     * @return False.
+     */
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    public boolean isCancelled() {
+        return false;
+    }
+
+    public Void get() throws InterruptedException, ExecutionException {
+        latch.await();
+        if (failure != null)
+            throw new ExecutionException(failure);
+        return null;
+    }
+
+    public Void get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!latch.await(timeout, unit))
+            throw new TimeoutException("Timeout waiting for receipt '" + receiptId + "'.");
+        if (failure != null)
+            throw new ExecutionException(failure);
+        return null;
+    }
+
+    @Override
+    public String toString() {
+        return "ReceiptFuture{" +
+                "receiptId='" + receiptId + '\'' +
+                ", done=" + isDone() +
+                '}';
+    }
+
+    //--------------------------------------------------------------------------------------------------------- Internal
+
+    boolean isExpired(long now) {
+        return now > expires;
+    }
+
+    boolean complete() {
+        if (!finished.compareAndSet(false, true))
+            return false;
+        latch.countDown();
+        notifyListeners();
+        return true;
+    }
+
+    boolean fail(IOException e) {
+        if (!finished.compareAndSet(false, true))
+            return false;
+        if (pending != null)
+            pending.remove(receiptId, this);
+        failure = e;
+        latch.countDown();
+        notifyListeners();
+        return true;
+    }
+
+    private void notifyListeners() {
+        List<Runnable> list;
+        synchronized (this) {
+            list = listeners;
+            listeners = null;
+        }
+        if (list != null) {
+            for (Runnable listener : list) {
+                run(listener);
+            }
+        }
+    }
+
+    private static void run(Runnable listener) {
+        try {
+            listener.run();
+        } catch (RuntimeException e) {
+            e.printStackTrace(); // Don't let it take down the reader.
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package stomp;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A subscription as the connection keeps it: its consumer, and how many messages the consumer hasn't finished with.
+ * <p/>
+ * A message is in flight from when it's received until the consumer's onMessage returns, including any time spent
+ * queued for a dispatch executor.  In client ack mode it is then unacked until the consumer acknowledges it or a later
+ * message (acks are cumulative, as with ActiveMQ).
+ */
+final class Subscription {
+
+    final String id;
+    final String destination;
+    final Frame frame; // The SUBSCRIBE frame as first built, for replay
+    final Consumer consumer;
+    final BatchConsumer batchConsumer; // The consumer, if it takes batches
+    final Dispatcher dispatcher; // Null if the consumer is called on the reader thread
+    final boolean clientAck;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong delivered = new AtomicLong();
+    private final AtomicLong acked = new AtomicLong();
+
+    // Batch being collected on the reader thread, when consumers are called there.
+    final List<Message> batch = new ArrayList<Message>();
+    int batchBytes;
+    boolean batchPending;
+
+    Subscription(Connection connection, String id, Frame frame, Consumer consumer, Executor executor, int dispatchQueue,
+                 String dispatchOverflow) {
+        this.id = id;
+        this.destination = frame.getHeader(Message.DESTINATION);
+        this.frame = frame.snapshot(); // Before a receipt is added
+        this.consumer = consumer;
+        this.batchConsumer = consumer instanceof BatchConsumer ? (BatchConsumer) consumer : null;
+        this.dispatcher = executor == null ? null :
+                new Dispatcher(connection, this, executor, dispatchQueue, dispatchOverflow);
+        this.clientAck = Connection.ACKMODE_CLIENT.equals(frame.getHeader(Connection.SUBSCRIBE_ACKMODE));
+    }
+
+    /**
+     * A message arrived for the subscription.
+     *
+     * @return Its sequence number within the subscription, for cumulative acks.
+     */
+    long received() {
+        inFlight.incrementAndGet();
+        return delivered.incrementAndGet();
+    }
+
+    /**
+     * The consumer is done with a message (or it was dropped).
+     */
+    void finished() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * The message with the given sequence number, and every one before it, has been acknowledged.
+     */
+    void acknowledged(long sequence) {
+        long current;
+        do {
+            current = acked.get();
+            if (sequence <= current)
+                return;
+        } while (!acked.compareAndSet(current, sequence));
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    int getUnacked() {
+        return clientAck ? (int) (delivered.get() - acked.get()) : 0;
+    }
+}
@@ -1,29 +1,98 @@
 package stomp;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import javax.net.SocketFactory;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.List;
 import java.util.Properties;
+import java.util.Queue;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * A connection over a socket, with a thread of its own reading from it.
+ * <p/>
+ * With "reconnect=true" on the url, losing the socket doesn't close the connection.  The reader reconnects, backing off
+ * exponentially from "reconnectDelay" (milliseconds, default 100) up to "reconnectMaxDelay" (default 30000), each wait
+ * jittered so clients dropped together don't all return at once; "reconnectAttempts" (default unlimited) gives up
+ * after so many attempts in a row.  It then sends CONNECT again, replays every subscription with the same id and
+ * headers, and writes whatever was sent in the meantime.  With a failover url each attempt races every broker listed.
+ * <p/>
+ * While the link is down, frames are held in order, up to "outageBuffer" of them (default 10000).  Beyond that
+ * "outageOverflow" decides, taking the same policies as dispatchOverflow: "block" (the default) makes senders wait
+ * for the link or room, "drop-oldest" discards the longest held frame, "error" fails the send.  Receipts for frames
+ * written before the loss fail; held frames get theirs once resent.  Reconnecting ignores "writer=async".
+ */
 public final class TcpConnection extends Connection implements Runnable {
 
-    private final DataOutputStream output;
-    private final DataInputStream input;
-    private final Socket socket;
-    private int nextSubscriptionId = 1;
+    private OutputStream output; // Guarded by 'outputLock'
+    private InputStream input; // Only touched by the reader
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final Lock outputLock = new ReentrantLock(); // A monitor would pin a virtual thread blocked writing
+    private final FrameEncoder encoder = new FrameEncoder(); // Guarded by 'outputLock'
+    private final AsyncWriter writer; // With "writer=async", otherwise frames are written by the sending thread
+    private volatile Socket socket;
     private boolean closedSocket = false; // If had to terminate by forceful close of socket (ie, SSL)
+    private final Properties properties;
+
+    // With "reconnect=true".
+    private final boolean reconnect;
+    private final long reconnectDelay;
+    private final long reconnectMaxDelay;
+    private final int reconnectAttempts;
+    private final int outageBuffer;
+    private final String outageOverflow;
+    private final Queue<Frame> held = new ArrayDeque<Frame>(); // Guarded by 'outputLock', sent while the link was down
+    private final Condition linkChanged = outputLock.newCondition();
+    private volatile boolean linkUp = true; // Changed holding 'outputLock'
+    private long backoff; // Only touched by the reader
+    private final Random random = new Random();
 
     public TcpConnection(URI uri, Socket socket, Properties properties) throws IOException {
-        super(uri);
-        
-        input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-        output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        super(uri, properties);
+        decoder.setBodyPool(bodyPool);
+        this.properties = properties;
+
+        reconnect = "true".equals(properties.getProperty("reconnect"));
+        reconnectDelay = Long.parseLong(properties.getProperty("reconnectDelay", "100"));
+        reconnectMaxDelay = Long.parseLong(properties.getProperty("reconnectMaxDelay", "30000"));
+        reconnectAttempts = Integer.parseInt(properties.getProperty("reconnectAttempts", "-1"));
+        outageBuffer = Integer.parseInt(properties.getProperty("outageBuffer", "10000"));
+        outageOverflow = properties.getProperty("outageOverflow", DISPATCH_BLOCK);
+        if (!DISPATCH_BLOCK.equals(outageOverflow) && !DISPATCH_DROP_OLDEST.equals(outageOverflow) &&
+                !DISPATCH_ERROR.equals(outageOverflow))
+            throw new IllegalArgumentException("Invalid outageOverflow: " + outageOverflow);
+        backoff = reconnectDelay;
+
+        input = socket.getInputStream();
+        output = socket.getOutputStream();
         this.socket = socket;
+        configure(socket);
+
+        if ("async".equals(properties.getProperty("writer")) && !reconnect) {
+            writer = new AsyncWriter(this, output, properties);
+            writer.start();
+        } else {
+            writer = null;
+        }
+
+        super.start();
+
+        // Connect to the server
+        connect(properties);
+    }
 
+    private void configure(Socket socket) throws IOException {
         if (properties.containsKey("soTimeout")) {
             socket.setSoTimeout(Integer.parseInt (properties.getProperty("soTimeout")));
         }
@@ -33,64 +102,82 @@ public final class TcpConnection extends Connection implements Runnable {
         if (properties.containsKey("soLinger")) {
             socket.setSoLinger(true, Integer.parseInt (properties.getProperty("soLinger")));
         }
+    }
 
-        super.start();
-
-        // Connect to the server
-        Frame connect = new Frame(Frame.TYPE_CONNECT);
-        connect.getHeaders().put("login", properties.getProperty("login", ""));
-        connect.getHeaders().put("passcode", properties.getProperty("passcode", ""));
-        try {
-            transmit(connect, -1);
-        } catch (IOException e) {
-            close();
-            throw e;
+    @Override
+    public void testConnection() {
+        if (!linkUp)
+            return;
+        if (writer != null) {
+            try {
+                writer.heartbeat();
+            } catch (IOException e) {
+                publishError("Error in heartbeat: " + e, e);
+            }
+            return;
         }
-
+        outputLock.lock();
         try {
-            long totalWait = 0;
-            while (!isConnected() && !isClosed() && lastError == null && lastException == null) {
-                awaitStatus(2000);
-                totalWait += 2000;
-                if (totalWait > 30000) {
-                    close();
-                    throw new IOException ("Failed to connect before timeout.");
-                }
-            }
-            if (isClosed()) throw new IOException(lastError, lastException);
-        } catch (InterruptedException e) {
-            // ignore
+            output.write(0x0a); // per stomp spec 1.1, a single newline
+            output.flush();
+        } catch (Exception e) {
+            publishError("Error in heartbeat: " + e, e);
+        } finally {
+            outputLock.unlock();
         }
     }
 
     @Override
-    public void testConnection() {
-        synchronized (output) {
+    protected void transmit(Frame frame, long waitMillis) throws IOException {
+        if (writer != null) {
+            writer.enqueue(frame.snapshot());
+        } else {
+            outputLock.lock();
             try {
-                output.write(0x0a); // per stomp spec 1.1, a single newline
-                output.flush();
-            } catch (Exception e) {
-                publishError("Error in heartbeat: " + e, e);
+                if (!linkUp && hold(frame, true))
+                    return;
+                // Encode the whole frame and hand it to the socket in one write, no buffered stream or flush needed.
+                encoder.clear();
+                encoder.encode(frame);
+                output.write(encoder.array(), 0, encoder.length());
+            } finally {
+                outputLock.unlock();
             }
         }
     }
 
     @Override
-    protected void transmit(Frame frame, long waitMillis) throws IOException {
-        String receipt = null;
-        if (waitMillis >= 0)
-            receipt = addReceipt(frame);
-        synchronized (output) {
-            frame.write(output);
-        }
-        if (receipt != null)
-            waitOnReceipt(receipt, waitMillis);
+    protected void transmit(List<Frame> frames) throws IOException {
+        if (writer != null) {
+            for (Frame frame : frames) {
+                writer.enqueue(frame);
+            }
+            return;
+        }
+        outputLock.lock();
+        try {
+            int first = 0;
+            while (!linkUp && first < frames.size() && hold(frames.get(first), false)) {
+                first++;
+            }
+            if (first == frames.size())
+                return;
+            encoder.clear();
+            for (int i = first; i < frames.size(); i++) {
+                encoder.encode(frames.get(i));
+            }
+            output.write(encoder.array(), 0, encoder.length());
+        } finally {
+            outputLock.unlock();
+        }
     }
 
     @Override
     protected void disconnect() {
         // According to the STOMP design, the clients sends a DISCONNECT.
         transmitDisconnect();
+        if (writer != null)
+            writer.stop(3000);
 
         // Preferred way to close is to send EOF via shutdownInput, but SSLSockets don't support that method.
         // Also must force socket close or input/output streams may hang
@@ -104,36 +191,211 @@ public final class TcpConnection extends Connection implements Runnable {
 
     @Override
     protected String createSubscriptionId(String destination) {
-        String id = Integer.toString(nextSubscriptionId);
-        nextSubscriptionId++;
-        if (nextSubscriptionId > 1000000)
-            nextSubscriptionId = 1;
-        return id;
+        return nextSubscriptionId();
     }
 
     public void run() {
+        while (true) {
+            receive();
+            if (!reconnect || closed || !reconnect())
+                break;
+        }
+
+        // Unless we're the ones closing, in which case disconnect() already sent DISCONNECT.
+        if (!closedSocket && !closed) {
+            if (linkUp)
+                transmitDisconnect();
+            if (writer != null)
+                writer.stop(3000);
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore?
+            }
+        }
+        closed = true;
+        failReceipts("Connection closed.");
+        signalStatus();
+    }
+
+    //--------------------------------------------------------------------------------------------------------- Internal
+
+    /**
+     * Read and dispatch frames until the socket closes or fails.
+     */
+    private void receive() {
+        ByteBuffer buffer = ByteBuffer.allocate(8192);
+        decoder.reset();
         while (!isClosed()) {
             try {
-                Frame frame = Frame.read(input);
-                if (frame == null)
+                int count = input.read(buffer.array(), buffer.position(), buffer.remaining());
+                if (count == -1)
                     break;
-                frameReceived(frame);
+                buffer.position(buffer.position() + count);
+                buffer.flip();
+                Frame frame;
+                while ((frame = decoder.decode(buffer)) != null) {
+                    frameReceived(frame);
+                }
+                flushBatches();
+                buffer = FrameDecoder.compact(buffer);
             } catch (IOException e) {
                 if (!closedSocket)
                     publishError(e.getMessage(), e);
                 break;
             }
         }
+    }
+
+    /**
+     * Hold a frame sent while the link is down, applying the overflow policy.  Caller holds the output lock.
+     *
+     * @param copy If the frame is the caller's, to be copied before holding.
+     * @return False if the link came back meanwhile, so the frame should be written after all.
+     */
+    private boolean hold(Frame frame, boolean copy) throws IOException {
+        while (!linkUp) {
+            if (closed)
+                throw new IOException("Connection closed.");
+            if (held.size() < outageBuffer) {
+                held.add(copy ? frame.snapshot() : frame);
+                return true;
+            }
+            if (DISPATCH_DROP_OLDEST.equals(outageOverflow)) {
+                held.poll();
+            } else if (DISPATCH_ERROR.equals(outageOverflow)) {
+                throw new IOException("Connection down and outage buffer full (" + outageBuffer + " frames).");
+            } else {
+                try {
+                    linkChanged.await(100, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted waiting for the connection.");
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * The link is gone: get a new one, backing off between attempts.
+     *
+     * @return False if closed or out of attempts.
+     */
+    private boolean reconnect() {
+        boolean wasConnected = connected;
+        outputLock.lock();
+        try {
+            linkUp = false;
+        } finally {
+            outputLock.unlock();
+        }
+        connected = false;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+        failReceipts("Connection lost.");
+        publishError("Connection lost, reconnecting.", null);
 
-        if (!closedSocket) {
-            transmitDisconnect();
+        // Start over from the shortest delay, unless the last attempt never even got as far as CONNECTED.
+        if (wasConnected)
+            backoff = reconnectDelay;
+        for (int attempt = 0; reconnectAttempts < 0 || attempt < reconnectAttempts; attempt++) {
+            // Half the delay fixed, half random.
+            long delay = backoff / 2 + (long) (random.nextDouble() * (backoff - backoff / 2));
+            backoff = Math.min(backoff * 2, reconnectMaxDelay);
+            long wakeUp = System.currentTimeMillis() + delay;
             try {
-                socket.close();
+                while (!closed && System.currentTimeMillis() < wakeUp) {
+                    Thread.sleep(Math.min(100, Math.max(1, wakeUp - System.currentTimeMillis())));
+                }
+            } catch (InterruptedException e) {
+                return false;
+            }
+            if (closed)
+                return false;
+
+            Socket socket = null;
+            try {
+                socket = connectSocket();
+                configure(socket);
+                InputStream input = socket.getInputStream();
+                OutputStream output = socket.getOutputStream();
+
+                outputLock.lock();
+                try {
+                    if (closed) {
+                        socket.close();
+                        return false;
+                    }
+                    this.socket = socket;
+                    this.input = input;
+                    this.output = output;
+
+                    // CONNECT, the subscriptions, then everything held back, in one write.
+                    encoder.clear();
+                    encoder.encode(connectFrame(properties));
+                    for (Frame frame : subscriptionFrames()) {
+                        encoder.encode(frame);
+                    }
+                    for (Frame frame : held) {
+                        encoder.encode(frame);
+                    }
+                    output.write(encoder.array(), 0, encoder.length());
+                    held.clear();
+                    linkUp = true;
+                    linkChanged.signalAll();
+                } finally {
+                    outputLock.unlock();
+                }
+                return true;
             } catch (IOException e) {
-                // ignore?
+                if (socket != null) {
+                    try {
+                        socket.close();
+                    } catch (IOException e1) {
+                        // ignore
+                    }
+                }
             }
         }
-        closed = true;
+        return false;
+    }
+
+    /**
+     * @return A socket to the first broker in the url to accept one, racing them if there are several.
+     */
+    private Socket connectSocket() throws IOException {
+        URI uri = getUri();
+        final SocketFactory factory = socketFactory("stomp+ssl".equals(uri.getScheme()));
+        final int timeout = Integer.parseInt(properties.getProperty("connectTimeout", "2000"));
+        return Failover.race(Failover.addresses(uri), Long.parseLong(properties.getProperty("connectStagger", "250")),
+                "virtual".equals(properties.getProperty("threads", System.getProperty("stomp.threads"))),
+                new Failover.Attempt<Socket>() {
+                    Socket open(InetSocketAddress address) throws IOException {
+                        Socket socket = factory.createSocket();
+                        try {
+                            socket.connect(address, timeout);
+                        } catch (IOException e) {
+                            try {
+                                socket.close();
+                            } catch (IOException e1) {
+                                // ignore
+                            }
+                            throw e;
+                        }
+                        return socket;
+                    }
+
+                    void discard(Socket socket) {
+                        try {
+                            socket.close();
+                        } catch (IOException e) {
+                            // ignore
+                        }
+                    }
+                });
     }
 
     private void transmitDisconnect() {
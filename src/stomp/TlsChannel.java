@@ -0,0 +1,386 @@
+package stomp;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SocketChannel;
+import java.security.KeyStore;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * TLS over a non-blocking channel with an SSLEngine, for "stomp+ssl" urls with "io=nio".
+ * <p/>
+ * Writing wraps the plain text into a direct buffer and writes what the socket takes, keeping the rest; reading
+ * unwraps into another, and hands the plain text on.  Neither ever blocks, the handshake moving along with whichever
+ * side can: a write the handshake needs the server's reply for takes nothing and reports itself stalled, to be retried
+ * once a read has got the handshake past that point.  Writes may come from any thread, reads only from the event loop.
+ * The engine's delegated tasks run on the thread that finds them.
+ * <p/>
+ * Engines come from an SSLContext shared by every connection with the same trust store and session options, so its
+ * client session cache lets a reconnect resume the previous session with an abbreviated handshake.  Url options:
+ * <pre>
+ *  tlsProtocols             enabled protocols, comma separated (e.g. "TLSv1.3,TLSv1.2")
+ *  tlsCiphers               enabled cipher suites, comma separated
+ *  tlsTrustStore            trust store file, otherwise the JVM's default context is used
+ *  tlsTrustStorePassword
+ *  tlsTrustStoreType        default the JVM's default keystore type
+ *  tlsSessionCache          client session cache size
+ *  tlsSessionTimeout        seconds a cached session may be resumed for
+ *  tlsSessionResume         "false" for a full handshake every time
+ * </pre>
+ */
+final class TlsChannel implements ByteChannel {
+
+    // Contexts by trust store, its type and password, and session options.
+    private static final Map<String, SSLContext> contexts = new HashMap<String, SSLContext>(); // Guarded by 'contexts'
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final SocketChannel channel;
+    private final SSLEngine engine;
+
+    private final Lock wrapLock = new ReentrantLock();
+    private ByteBuffer netOut; // Guarded by 'wrapLock', in read mode from position zero
+    private boolean stalled; // Guarded by 'wrapLock', a write waits on the handshake
+
+    private ByteBuffer netIn; // Only touched by the loop, in write mode
+    private ByteBuffer appIn; // Only touched by the loop, in write mode
+    private boolean inboundDone; // Only touched by the loop
+
+    TlsChannel(SocketChannel channel, SSLEngine engine) throws SSLException {
+        this.channel = channel;
+        this.engine = engine;
+        netOut = ByteBuffer.allocateDirect(2 * engine.getSession().getPacketBufferSize());
+        netOut.flip();
+        netIn = ByteBuffer.allocateDirect(engine.getSession().getPacketBufferSize());
+        appIn = ByteBuffer.allocateDirect(engine.getSession().getApplicationBufferSize());
+        engine.beginHandshake();
+    }
+
+    /**
+     * @return A client engine for the server, configured from the url's options.
+     */
+    static SSLEngine createEngine(Properties properties, InetSocketAddress server) throws IOException {
+        // The cache finds a session to resume by the server's host and port.
+        SSLEngine engine = "false".equals(properties.getProperty("tlsSessionResume"))
+                ? context(properties).createSSLEngine()
+                : context(properties).createSSLEngine(server.getHostString(), server.getPort());
+        engine.setUseClientMode(true);
+        String protocols = properties.getProperty("tlsProtocols");
+        if (protocols != null)
+            engine.setEnabledProtocols(protocols.split(","));
+        String ciphers = properties.getProperty("tlsCiphers");
+        if (ciphers != null)
+            engine.setEnabledCipherSuites(ciphers.split(","));
+        return engine;
+    }
+
+    /**
+     * Wrap and write as much as the socket takes now.
+     *
+     * @return Number of plain text bytes taken.
+     */
+    public int write(ByteBuffer src) throws IOException {
+        wrapLock.lock();
+        try {
+            int consumed = 0;
+            stalled = false;
+            while (true) {
+                SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+                if (status == SSLEngineResult.HandshakeStatus.NEED_UNWRAP) {
+                    stalled = true;
+                    break;
+                }
+                if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                    runTasks();
+                    continue;
+                }
+                // Once the server has closed, its close_notify isn't answered here but by shutdownOutput.
+                if (!src.hasRemaining() &&
+                        (status != SSLEngineResult.HandshakeStatus.NEED_WRAP || engine.isInboundDone()))
+                    break;
+                if (!hasRoom() && !flushNet())
+                    return consumed; // Socket full
+                consumed += wrap(src);
+            }
+            flushNet();
+            return consumed;
+        } finally {
+            wrapLock.unlock();
+        }
+    }
+
+    /**
+     * Read what the socket has, and unwrap it.
+     *
+     * @return Number of plain text bytes put in 'dst', or -1 once the server has closed.
+     */
+    public int read(ByteBuffer dst) throws IOException {
+        boolean eof = false;
+        if (!inboundDone && netIn.hasRemaining())
+            eof = channel.read(netIn) == -1;
+        unwrap();
+
+        appIn.flip();
+        int count = Math.min(appIn.remaining(), dst.remaining());
+        if (count > 0) {
+            int limit = appIn.limit();
+            appIn.limit(appIn.position() + count);
+            dst.put(appIn);
+            appIn.limit(limit);
+        }
+        appIn.compact();
+        if (count == 0 && (eof || inboundDone))
+            return -1;
+        return count;
+    }
+
+    /**
+     * @return True if plain text is waiting, that didn't fit the last read's buffer.
+     */
+    boolean hasInput() {
+        return appIn.position() > 0;
+    }
+
+    /**
+     * @return True if wrapped bytes are waiting for the socket to drain.
+     */
+    boolean hasOutput() {
+        wrapLock.lock();
+        try {
+            return netOut.hasRemaining();
+        } finally {
+            wrapLock.unlock();
+        }
+    }
+
+    /**
+     * @return True if the last write couldn't go on until the server's part of the handshake is read.
+     */
+    boolean isStalled() {
+        wrapLock.lock();
+        try {
+            return stalled;
+        } finally {
+            wrapLock.unlock();
+        }
+    }
+
+    /**
+     * Send close_notify, if the socket takes it now.
+     */
+    void shutdownOutput() {
+        wrapLock.lock();
+        try {
+            engine.closeOutbound();
+            while (flushNet() && !engine.isOutboundDone()) {
+                wrap(EMPTY);
+            }
+        } catch (IOException e) {
+            // Closing anyway.
+        } finally {
+            wrapLock.unlock();
+        }
+    }
+
+    public boolean isOpen() {
+        return channel.isOpen();
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    //--------------------------------------------------------------------------------------------------------- Internal
+
+    private static SSLContext context(Properties properties) throws IOException {
+        String trustStore = properties.getProperty("tlsTrustStore", "");
+        String type = properties.getProperty("tlsTrustStoreType", KeyStore.getDefaultType());
+        String password = properties.getProperty("tlsTrustStorePassword");
+        String cacheSize = properties.getProperty("tlsSessionCache");
+        String timeout = properties.getProperty("tlsSessionTimeout");
+        String key = trustStore + '\n' + type + '\n' + password + '\n' + cacheSize + '\n' + timeout;
+        SSLContext context;
+        synchronized (contexts) {
+            context = contexts.get(key);
+            if (context == null) {
+                try {
+                    if (trustStore.length() == 0 && cacheSize == null && timeout == null) {
+                        context = SSLContext.getDefault();
+                    } else {
+                        // A context of our own, so session options don't touch the JVM's default one.
+                        TrustManager[] trustManagers = null;
+                        if (trustStore.length() > 0) {
+                            KeyStore keyStore = KeyStore.getInstance(type);
+                            InputStream in = new FileInputStream(trustStore);
+                            try {
+                                keyStore.load(in, password == null ? null : password.toCharArray());
+                            } finally {
+                                in.close();
+                            }
+                            TrustManagerFactory trust =
+                                    TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+                            trust.init(keyStore);
+                            trustManagers = trust.getTrustManagers();
+                        }
+                        context = SSLContext.getInstance("TLS");
+                        context.init(null, trustManagers, null);
+
+                        SSLSessionContext sessions = context.getClientSessionContext();
+                        if (cacheSize != null)
+                            sessions.setSessionCacheSize(Integer.parseInt(cacheSize));
+                        if (timeout != null)
+                            sessions.setSessionTimeout(Integer.parseInt(timeout));
+                    }
+                } catch (IOException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new IOException("Error initializing TLS: " + e, e);
+                }
+                contexts.put(key, context);
+            }
+        }
+        return context;
+    }
+
+    /**
+     * @return True if the output buffer has room for another record.  Caller holds the wrap lock.
+     */
+    private boolean hasRoom() {
+        return netOut.capacity() - netOut.limit() >= engine.getSession().getPacketBufferSize();
+    }
+
+    /**
+     * Wrap a record after whatever is waiting in the output buffer, so a handshake flight (or a record and what
+     * follows it) goes in one write rather than a small one each, which Nagle would hold back.  Caller holds the wrap
+     * lock, and has made room.
+     *
+     * @return Number of plain text bytes taken.
+     */
+    private int wrap(ByteBuffer src) throws IOException {
+        int position = netOut.position();
+        netOut.position(netOut.limit());
+        netOut.limit(netOut.capacity());
+        SSLEngineResult result;
+        try {
+            result = engine.wrap(src, netOut);
+        } finally {
+            netOut.limit(netOut.position());
+            netOut.position(position);
+        }
+        switch (result.getStatus()) {
+            case BUFFER_OVERFLOW:
+                // The session's packet size grew, e.g. once negotiated.
+                ByteBuffer bigger = ByteBuffer.allocateDirect(2 * engine.getSession().getPacketBufferSize());
+                bigger.put(netOut);
+                bigger.flip();
+                netOut = bigger;
+                break;
+            case CLOSED:
+                if (!engine.isOutboundDone() || src.hasRemaining())
+                    throw new SSLException("TLS connection closed.");
+                break;
+            default:
+                break;
+        }
+        return result.bytesConsumed();
+    }
+
+    /**
+     * Write out what was wrapped.  Caller holds the wrap lock.
+     *
+     * @return True if all of it went.
+     */
+    private boolean flushNet() throws IOException {
+        while (netOut.hasRemaining()) {
+            if (channel.write(netOut) == 0)
+                return false;
+        }
+        netOut.clear();
+        netOut.flip();
+        return true;
+    }
+
+    /**
+     * Unwrap whatever complete records have arrived, answering the handshake as needed.
+     */
+    private void unwrap() throws IOException {
+        while (!inboundDone) {
+            SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+            if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+                runTasks();
+                continue;
+            }
+            if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP) {
+                // Written by the next write, with anything it has to send too.
+                wrapLock.lock();
+                try {
+                    if (engine.getHandshakeStatus() != SSLEngineResult.HandshakeStatus.NEED_WRAP ||
+                            (!hasRoom() && !flushNet()))
+                        return;
+                    wrap(EMPTY);
+                } finally {
+                    wrapLock.unlock();
+                }
+                continue;
+            }
+
+            netIn.flip();
+            SSLEngineResult result;
+            try {
+                result = engine.unwrap(netIn, appIn);
+            } finally {
+                netIn.compact();
+            }
+            switch (result.getStatus()) {
+                case BUFFER_UNDERFLOW:
+                    // Need the rest of the record, in a bigger buffer if it won't fit.
+                    if (netIn.capacity() < engine.getSession().getPacketBufferSize())
+                        netIn = grow(netIn, engine.getSession().getPacketBufferSize());
+                    return;
+                case BUFFER_OVERFLOW:
+                    // Plain text already waiting must go first, unless the buffer is just too small.
+                    if (appIn.position() > 0)
+                        return;
+                    appIn = grow(appIn, engine.getSession().getApplicationBufferSize());
+                    break;
+                case CLOSED:
+                    inboundDone = true;
+                    return;
+                default:
+                    if (result.bytesConsumed() == 0 && result.bytesProduced() == 0 &&
+                            engine.getHandshakeStatus() == status)
+                        return;
+                    break;
+            }
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = engine.getDelegatedTask()) != null) {
+            task.run();
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        ByteBuffer bigger = ByteBuffer.allocateDirect(Math.max(capacity, buffer.capacity() * 2));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+}
@@ -0,0 +1,93 @@
+package stomp;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A STOMP transaction, from {@link Connection#begin()}.
+ * <p/>
+ * Sends and acks are held here, tagged with the "transaction" header, until {@link #commit}, which writes BEGIN, all
+ * of them and COMMIT as one batch and waits for a single receipt, on the COMMIT.  Aborting before then sends nothing
+ * at all, as the server never saw the BEGIN.
+ * <p/>
+ * Not thread-safe, use a transaction from one thread at a time.
+ */
+public final class Transaction {
+
+    private final Connection connection;
+    private final String id;
+    private final List<Frame> frames = new ArrayList<Frame>();
+    private boolean finished;
+
+    Transaction(Connection connection, String id) {
+        this.connection = connection;
+        this.id = id;
+        frames.add(frame(Frame.TYPE_BEGIN));
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void send(String destination, Message message) throws IOException {
+        checkOpen();
+        Frame frame = new Frame(message).snapshot(); // The message may change before commit
+        frame.getHeaders().put("destination", destination);
+        frame.getHeaders().put("transaction", id);
+        frames.add(frame);
+    }
+
+    public void ack(String messageId) throws IOException {
+        checkOpen();
+        Frame frame = frame(Frame.TYPE_ACK);
+        frame.getHeaders().put("message-id", messageId);
+        frames.add(frame);
+    }
+
+    /**
+     * @return Number of sends and acks so far.
+     */
+    public int size() {
+        return frames.size() - 1;
+    }
+
+    /**
+     * Send everything and commit it.
+     *
+     * @param waitMillis How long to wait for the server to confirm the commit, or -1 not to.
+     */
+    public void commit(long waitMillis) throws IOException {
+        checkOpen();
+        finished = true;
+        if (size() == 0)
+            return; // Nothing to commit, don't bother the server.
+        frames.add(frame(Frame.TYPE_COMMIT));
+        try {
+            connection.transmit1(frames, waitMillis);
+        } finally {
+            frames.clear();
+        }
+    }
+
+    /**
+     * Throw away everything sent and acked in this transaction.
+     */
+    public void abort() {
+        finished = true;
+        frames.clear();
+    }
+
+    //--------------------------------------------------------------------------------------------------------- Internal
+
+    private Frame frame(String type) {
+        Frame frame = new Frame(type);
+        frame.getHeaders().put("transaction", id);
+        return frame;
+    }
+
+    private void checkOpen() throws IOException {
+        if (finished)
+            throw new IOException("Transaction '" + id + "' already finished.");
+    }
+}
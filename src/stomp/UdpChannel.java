@@ -0,0 +1,137 @@
+package stomp;
+
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Enumeration;
+import java.util.Properties;
+
+/**
+ * Multicast over DatagramChannels, received into and sent from direct buffers, so a packet never passes through a
+ * byte[] on the way.  Java 7+, only loaded when the JVM has it.
+ * <p/>
+ * A channel joins the group on one network interface: "networkInterface" on the url, by name or address, or else the
+ * one the routing table sends the group's traffic through.  Both channels use it.  "soTimeout" doesn't apply.
+ */
+final class UdpChannel extends UdpTransport {
+
+    private final DatagramChannel rxChannel;
+    private final DatagramChannel txChannel;
+    private final InetSocketAddress destination;
+
+    private UdpChannel(DatagramChannel rxChannel, DatagramChannel txChannel, InetSocketAddress destination) {
+        this.rxChannel = rxChannel;
+        this.txChannel = txChannel;
+        this.destination = destination;
+    }
+
+    static UdpChannel open(InetAddress group, int port, Properties properties) throws IOException {
+        StandardProtocolFamily family = group instanceof Inet6Address
+                ? StandardProtocolFamily.INET6 : StandardProtocolFamily.INET;
+        NetworkInterface networkInterface = networkInterface(group, port, properties.getProperty("networkInterface"));
+        DatagramChannel rx = DatagramChannel.open(family);
+        DatagramChannel tx = null;
+        try {
+            rx.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            if (properties.containsKey("receiveBufferSize")) {
+                rx.setOption(StandardSocketOptions.SO_RCVBUF,
+                        Integer.parseInt(properties.getProperty("receiveBufferSize")));
+            }
+            rx.bind(bindAddress(group, port));
+            rx.join(group, networkInterface);
+
+            tx = DatagramChannel.open(family);
+            tx.setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface);
+            tx.setOption(StandardSocketOptions.IP_MULTICAST_TTL, Integer.parseInt(properties.getProperty("ttl", "32")));
+            if (properties.containsKey("trafficClass"))
+                tx.setOption(StandardSocketOptions.IP_TOS, Integer.parseInt(properties.getProperty("trafficClass")));
+            tx.bind(null);
+        } catch (IOException e) {
+            rx.close();
+            if (tx != null)
+                tx.close();
+            throw e;
+        }
+        return new UdpChannel(rx, tx, new InetSocketAddress(group, port));
+    }
+
+    boolean direct() {
+        return true;
+    }
+
+    InetAddress receive(ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        // The channel keeps handing back the same address object while the sender stays the same.
+        InetSocketAddress sender = (InetSocketAddress) rxChannel.receive(buffer);
+        buffer.flip();
+        return sender.getAddress();
+    }
+
+    void send(ByteBuffer buffer, int offset, int length) throws IOException {
+        int position = buffer.position();
+        int limit = buffer.limit();
+        buffer.limit(offset + length);
+        buffer.position(offset);
+        try {
+            txChannel.send(buffer, destination);
+        } finally {
+            buffer.limit(limit);
+            buffer.position(position);
+        }
+    }
+
+    void close() {
+        try {
+            rxChannel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+        try {
+            txChannel.close();
+        } catch (IOException e) {
+            // Ignore
+        }
+    }
+
+    //--------------------------------------------------------------------------------------------------------- Internal
+
+    private static NetworkInterface networkInterface(InetAddress group, int port, String name) throws IOException {
+        if (name != null) {
+            NetworkInterface networkInterface = NetworkInterface.getByName(name);
+            if (networkInterface == null)
+                networkInterface = NetworkInterface.getByInetAddress(InetAddress.getByName(name));
+            if (networkInterface == null)
+                throw new IllegalArgumentException("Unknown networkInterface: " + name);
+            return networkInterface;
+        }
+
+        // Connecting a datagram socket sends nothing, but picks the local address the route to the group goes from.
+        DatagramSocket probe = new DatagramSocket();
+        try {
+            probe.connect(new InetSocketAddress(group, port));
+            NetworkInterface networkInterface = NetworkInterface.getByInetAddress(probe.getLocalAddress());
+            if (networkInterface != null && networkInterface.supportsMulticast())
+                return networkInterface;
+        } catch (IOException e) {
+            // No route.
+        } finally {
+            probe.close();
+        }
+
+        // No route, so multicast can only be local.
+        Enumeration<NetworkInterface> all = NetworkInterface.getNetworkInterfaces();
+        while (all.hasMoreElements()) {
+            NetworkInterface networkInterface = all.nextElement();
+            if (networkInterface.isLoopback() && networkInterface.isUp())
+                return networkInterface;
+        }
+        throw new IOException("No network interface for multicast group " + group);
+    }
+}
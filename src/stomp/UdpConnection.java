@@ -1,16 +1,17 @@
 package stomp;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.MulticastSocket;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.List;
 import java.util.Properties;
 import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Send/receive stomp frames over UDP multicast.
@@ -18,85 +19,210 @@ import java.util.UUID;
  * A couple of things to note:
  * - We don't set loopback to disable, so we have to filter out receiving our own transmission.  This is because
  * testing on linux has shown that if we enable this setting, then we get NO packets on the local machine, even
- * to other processes.
- * - We use a separate transmit socket, to avoid a "Invalid argument" exception on send when Ipv6 is enabled
+ * to other processes.  Frames carry a "client-id" header of ours to recognise them by.
+ * - With "udpFormat=binary" each packet instead starts with a small binary header carrying a random sender id, so our
+ * own come back and are dropped without being decoded.  Receivers before that option can't read these packets, so
+ * only use it once every receiver on the group is new enough; receivers read both formats either way.
+ * - With "io=nio" packets go through DatagramChannels and direct buffers rather than MulticastSockets, see
+ * {@link UdpTransport}.
+ * - With "udpFormat=binary", a frame too big for one packet ("packetSize", default 8192, header included) is also
+ * split into fragments carrying a message id, index and count, and put back together by receivers, see
+ * {@link Reassembler}.  Lose any fragment and the whole frame is lost.  Sized under the path MTU (1472 on plain
+ * ethernet with IPv4), packets also avoid IP fragmentation, which loses more.  Without the option a frame goes whole,
+ * in one datagram of up to 64K, as before.
  */
 public final class UdpConnection extends Connection implements Runnable {
 
-    private final MulticastSocket rxSocket;
-    private final MulticastSocket txSocket;
-    private final InetSocketAddress destination;
-    private final ByteArrayOutputStream out = new ByteArrayOutputStream(4096);
-    private final DataOutputStream dataOut = new DataOutputStream(out);
+    // Packet header: a NUL, which no frame starts with, the format, and the sender id.
+    private static final int HEADER = 10;
+    private static final byte FORMAT_FRAMES = 1;
 
-    // If we transmit, we'll generate a UUID and use it to filter out our own traffic.
-    private String clientId;
+    // Fragment header: the packet header, message id, index, count and the length of the whole.
+    private static final int FRAGMENT_HEADER = 22;
+    private static final byte FORMAT_FRAGMENT = 2;
 
-    public UdpConnection(URI uri, MulticastSocket rxSocket, Properties properties) throws IOException {
-        super(uri);
+    // Frames are encoded after room for either header.
+    private static final int START = FRAGMENT_HEADER;
 
-        this.rxSocket = rxSocket;
+    private final UdpTransport transport;
+    private final Lock txLock = new ReentrantLock();
+    private final FrameEncoder encoder; // Guarded by 'txLock'
+    private final FrameDecoder decoder = new FrameDecoder();
+    private final int packetSize;
+    private final boolean binary;
+    private final long senderId = new SecureRandom().nextLong();
+    private int messageId; // Guarded by 'txLock'
 
-        // All packets sent by this connection will go to the multicast group
-        destination = new InetSocketAddress(uri.getHost(), uri.getPort());
+    // If we transmit plain frames, we'll generate a UUID and use it to filter out our own traffic.
+    private volatile String clientId;
+    private final Reassembler reassembler;
 
-        // Use a separate transmit socket bound to a random port, if this connection receives traffic from this remote
-        // host/port it will filter it out.
-        txSocket = new MulticastSocket();
+    public UdpConnection(URI uri, MulticastSocket rxSocket, Properties properties) throws IOException {
+        this(uri, new UdpTransport.Sockets(rxSocket, new InetSocketAddress(uri.getHost(), uri.getPort()), properties),
+                properties);
+    }
 
-        if (properties.containsKey("soTimeout")) {
-            int timeout = Integer.parseInt(properties.getProperty("soTimeout"));
-            rxSocket.setSoTimeout(timeout);
-            txSocket.setSoTimeout(timeout);
-        }
+    UdpConnection(URI uri, UdpTransport transport, Properties properties) throws IOException {
+        super(uri, properties);
+        decoder.setBodyPool(bodyPool);
 
-        int ttl = 32;
-        if (properties.containsKey("ttl")) {
-            ttl = Integer.parseInt(properties.getProperty("ttl"));
-        }
-        txSocket.setTimeToLive(ttl);
+        // All packets sent by this connection go to the multicast group.
+        this.transport = transport;
+        encoder = new FrameEncoder(4096, transport.direct());
+        binary = "binary".equals(properties.getProperty("udpFormat"));
 
-        if (properties.containsKey("trafficClass")) {
-            txSocket.setTrafficClass(Integer.parseInt(properties.getProperty("trafficClass")));
-        }
-
-        // Disable receiving our own outbound packets.
-//        txSocket.setLoopbackMode(true);
+        packetSize = Integer.parseInt(properties.getProperty("packetSize", "8192"));
+        if (packetSize <= FRAGMENT_HEADER || packetSize > 65507)
+            throw new IllegalArgumentException("Invalid packetSize: " + packetSize);
+        reassembler = new Reassembler(Integer.parseInt(properties.getProperty("reassemblyMessages", "64")),
+                Long.parseLong(properties.getProperty("reassemblyBytes", String.valueOf(16 * 1024 * 1024))),
+                Long.parseLong(properties.getProperty("reassemblyTimeout", "2000")));
 
         super.start();
     }
 
     @Override
     protected void transmit(Frame frame, long waitMillis) throws IOException {
+        txLock.lock();
+        try {
+            // Don't send subscribe frames, or any other frames for that matter.
+            if (!prepare(frame))
+                return;
+            if (frame.destinations != null && !binary) {
+                // A datagram per destination, receivers before packing read only the first frame of each.
+                Frame copy = frame.snapshot();
+                copy.destinations = null;
+                for (String destination : frame.destinations) {
+                    copy.getHeaders().put("destination", destination);
+                    encoder.clear();
+                    encoder.skip(START);
+                    encoder.encode(copy);
+                    sendPacket(encoder.length());
+                }
+                return;
+            }
+            encoder.clear();
+            encoder.skip(START);
+            encoder.encode(frame);
+            sendPacket(encoder.length());
+        } finally {
+            txLock.unlock();
+        }
+    }
+
+    /**
+     * With "udpFormat=binary", pack as many whole frames into each datagram as fit in "packetSize" bytes (default
+     * 8192).  A frame bigger than that goes alone, in fragments.  Otherwise a datagram per frame, since receivers
+     * before packing read only the first frame of each.
+     */
+    @Override
+    protected void transmit(List<Frame> frames) throws IOException {
+        txLock.lock();
+        try {
+            if (!binary) {
+                for (Frame frame : frames) {
+                    if (!prepare(frame))
+                        continue;
+                    encoder.clear();
+                    encoder.skip(START);
+                    encoder.encode(frame);
+                    sendPacket(encoder.length());
+                }
+                return;
+            }
+
+            encoder.clear();
+            encoder.skip(START);
+            for (Frame frame : frames) {
+                if (!prepare(frame))
+                    continue;
+                int mark = encoder.length();
+                encoder.encode(frame);
+                if (mark > START && HEADER + encoder.length() - START > packetSize) {
+                    // Doesn't fit: send the frames before it, and start the next packet with this one.
+                    sendPacket(mark);
+                    encoder.clear();
+                    encoder.skip(START);
+                    encoder.encode(frame);
+                }
+            }
+            if (encoder.length() > START)
+                sendPacket(encoder.length());
+        } finally {
+            txLock.unlock();
+        }
+    }
+
+    /**
+     * @return False if the frame isn't for sending over UDP, else true having made it a MESSAGE.
+     */
+    private boolean prepare(Frame frame) {
         if (frame.getType().equals(Frame.TYPE_SEND)) {
             frame.setType(Frame.TYPE_MESSAGE);
         }
+        if (!frame.getType().equals(Frame.TYPE_MESSAGE))
+            return false;
+        if (!binary)
+            frame.getHeaders().put(Message.CLIENT_ID, clientId());
+        return true;
+    }
+
+    // Caller holds txLock.
+    private String clientId() {
+        if (clientId == null) {
+            clientId = UUID.randomUUID().toString();
+//            System.out.printf("Generated client-id: %s\n", clientId);
+        }
+        return clientId;
+    }
 
-        // Don't send subscribe frames, or any other frames for that matter.
-        if (!frame.getType().equals(Frame.TYPE_MESSAGE)) {
+    // Caller holds txLock.
+    private void sendPacket(int end) throws IOException {
+        // Fill in the header in the room left for it, and send straight from the encoder, no copy.
+        ByteBuffer buffer = encoder.buffer();
+        int length = end - START;
+        if (!binary) {
+            // Whole, however big, as older receivers expect.
+            transport.send(buffer, START, length);
+            return;
+        }
+        if (HEADER + length <= packetSize) {
+            int offset = START - HEADER;
+            buffer.put(offset, (byte) 0);
+            buffer.put(offset + 1, FORMAT_FRAMES);
+            buffer.putLong(offset + 2, senderId);
+            transport.send(buffer, offset, HEADER + length);
             return;
         }
 
-        synchronized (this) {
-            if (clientId == null) {
-                clientId = UUID.randomUUID().toString();
-//                System.out.printf("Generated client-id: %s\n", clientId);
-            }
-            out.reset();
-            frame.getHeaders().put(Message.CLIENT_ID, clientId);
-            frame.write(dataOut);
-
-            // NOTE: This stupid jdk method creates A NEW COPY OF THE BYTE ARRAY!!! Future project,
-            //  make a OutputStream that writes to our same byte[].
-            final byte[] data = out.toByteArray();
-            DatagramPacket packet = new DatagramPacket(data, 0, data.length, destination);
-            txSocket.send(packet);
+        // Even fragments, each header written over the end of the fragment before, already sent.
+        int count = (length + packetSize - FRAGMENT_HEADER - 1) / (packetSize - FRAGMENT_HEADER);
+        if (count > 0xffff)
+            throw new IOException("Frame too big for UDP: " + length + " bytes.");
+        int chunk = (length + count - 1) / count;
+        int id = ++messageId;
+        for (int index = 0; index < count; index++) {
+            int from = START + index * chunk;
+            int offset = from - FRAGMENT_HEADER;
+            buffer.put(offset, (byte) 0);
+            buffer.put(offset + 1, FORMAT_FRAGMENT);
+            buffer.putLong(offset + 2, senderId);
+            buffer.putInt(offset + 10, id);
+            buffer.putShort(offset + 14, (short) index);
+            buffer.putShort(offset + 16, (short) count);
+            buffer.putInt(offset + 18, length);
+            transport.send(buffer, offset, FRAGMENT_HEADER + Math.min(chunk, end - from));
         }
     }
 
+    @Override
+    protected boolean supportsReceipts() {
+        return false; // No server to send them
+    }
+
     @Override
     protected void disconnect() {
-        rxSocket.close();
+        transport.close();
     }
 
     @Override
@@ -105,28 +231,60 @@ public final class UdpConnection extends Connection implements Runnable {
     }
 
     public void run() {
-        final byte[] buffer = new byte[0x10000]; // theoretical max for udp
-        final DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+        // Theoretical max for udp.
+        final ByteBuffer data = transport.direct() ? ByteBuffer.allocateDirect(0x10000) : ByteBuffer.allocate(0x10000);
+        InetAddress lastSender = null;
+        String hostAddress = null;
         try {
             while (!isClosed()) {
-                rxSocket.receive(packet);
-                final int dataLength = packet.getLength();
-                final DataInputStream is = new DataInputStream(new ByteArrayInputStream(buffer, 0, dataLength));
-                Frame frame = Frame.read(is);
-                String rxClientId = frame.getHeaders().get(Message.CLIENT_ID);
-                String txClientId = clientId;
-                if (rxClientId != null && txClientId != null && rxClientId.equals(txClientId)) {
-                    //System.out.printf("Local loopback ignored.\n");
-                } else {
-                    frame.getHeaders().put(Message.HOST_ADDRESS, packet.getAddress().getHostAddress());
+                InetAddress sender = transport.receive(data);
+                ByteBuffer frames = data;
+                boolean plain = true;
+                if (data.remaining() >= HEADER && data.get(0) == 0) {
+                    plain = false;
+                    long rxSenderId = data.getLong(2);
+                    if (rxSenderId == senderId) {
+                        //System.out.printf("Local loopback ignored.\n");
+                        continue;
+                    }
+                    if (data.get(1) == FORMAT_FRAMES) {
+                        data.position(HEADER);
+                    } else if (data.get(1) == FORMAT_FRAGMENT && data.remaining() >= FRAGMENT_HEADER) {
+                        int messageId = data.getInt(10);
+                        int index = data.getShort(14) & 0xffff;
+                        int count = data.getShort(16) & 0xffff;
+                        int length = data.getInt(18);
+                        data.position(FRAGMENT_HEADER);
+                        byte[] whole = reassembler.add(rxSenderId, messageId, index, count, length, data);
+                        if (whole == null)
+                            continue;
+                        frames = ByteBuffer.wrap(whole);
+                    } else {
+                        continue; // Not a format we know
+                    }
+                }
+                if (!sender.equals(lastSender)) {
+                    lastSender = sender;
+                    hostAddress = sender.getHostAddress();
+                }
+                decoder.reset(); // Packets hold whole frames, drop anything left by a truncated one.
+                Frame frame;
+                while ((frame = decoder.decode(frames)) != null) {
+                    String txClientId = clientId;
+                    if (plain && txClientId != null && txClientId.equals(frame.getHeader(Message.CLIENT_ID))) {
+                        //System.out.printf("Local loopback ignored.\n");
+                        continue;
+                    }
+                    frame.setHostAddress(hostAddress);
                     frameReceived(frame);
                 }
+                flushBatches();
             }
         } catch (Exception e) {
             if (!closed)
                 publishError(e.getMessage(), e);
         }
         closed = true;
-        rxSocket.close();
+        transport.close();
     }
 }
@@ -0,0 +1,144 @@
+package stomp;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+
+/**
+ * Datagrams in and out of a multicast group, for {@link UdpConnection}.
+ * <p/>
+ * With "io=nio" on the url (or the "stomp.io=nio" system property) this is a pair of DatagramChannels reading and
+ * writing direct buffers, see {@link UdpChannel}; otherwise, or on JVMs before Java 7, a pair of MulticastSockets.
+ * <p/>
+ * "receiveBufferSize" sets the receiving socket's buffer in bytes, room for bursts while the reader catches up (the
+ * OS caps it, on Linux at net.core.rmem_max).
+ */
+abstract class UdpTransport {
+
+    private static final boolean CHANNELS;
+
+    static {
+        boolean channels;
+        try {
+            // Multicast on channels came with Java 7, along with this.
+            Class.forName("java.net.StandardProtocolFamily");
+            channels = true;
+        } catch (ClassNotFoundException e) {
+            channels = false;
+        }
+        CHANNELS = channels;
+    }
+
+    /**
+     * Join the group.
+     */
+    static UdpTransport open(InetAddress group, int port, Properties properties) throws IOException {
+        if (CHANNELS && "nio".equals(properties.getProperty("io", System.getProperty("stomp.io"))))
+            return UdpChannel.open(group, port, properties);
+
+        // Binding the multicast socket varies from Windows to other platforms.
+        // On Linux we must bind to the actual multicast address, otherwise it binds to "0.0.0.0:port" and will
+        // then receive all multicast traffic received by the local host for the same port number.
+        // Whereas Windows apparently will filter based on our group membership.
+        MulticastSocket socket = new MulticastSocket(bindAddress(group, port));
+        socket.joinGroup(group);
+        return new Sockets(socket, new InetSocketAddress(group, port), properties);
+    }
+
+    static InetSocketAddress bindAddress(InetAddress group, int port) {
+        if (System.getProperty("os.name").toLowerCase().contains("windows")) {
+            String bindAddress = System.getProperty("stomp.udp.bind");
+            return bindAddress != null ? new InetSocketAddress(bindAddress, port) : new InetSocketAddress(port);
+        }
+        // Linux, Solaris, OSX ...
+        return new InetSocketAddress(group, port);
+    }
+
+    /**
+     * @return True if buffers handed to this transport should be direct.
+     */
+    abstract boolean direct();
+
+    /**
+     * Wait for the next datagram.
+     *
+     * @param buffer Cleared and filled, then left in read mode holding the datagram.
+     * @return The sender.
+     */
+    abstract InetAddress receive(ByteBuffer buffer) throws IOException;
+
+    /**
+     * Send the bytes from 'offset' to 'offset' + 'length' to the group, as one datagram.  The buffer's position and
+     * limit are left as they were.
+     */
+    abstract void send(ByteBuffer buffer, int offset, int length) throws IOException;
+
+    abstract void close();
+
+    /**
+     * The original transport, over MulticastSockets and heap buffers.
+     * <p/>
+     * We use a separate transmit socket, to avoid a "Invalid argument" exception on send when Ipv6 is enabled.
+     */
+    static final class Sockets extends UdpTransport {
+
+        private final MulticastSocket rxSocket;
+        private final MulticastSocket txSocket;
+        private final DatagramPacket rxPacket = new DatagramPacket(new byte[0], 0);
+        private final DatagramPacket txPacket; // Guarded by the connection's 'txLock'
+
+        Sockets(MulticastSocket rxSocket, InetSocketAddress destination, Properties properties) throws IOException {
+            this.rxSocket = rxSocket;
+            txPacket = new DatagramPacket(new byte[0], 0, destination);
+
+            // Use a separate transmit socket bound to a random port, if this connection receives traffic from this
+            // remote host/port it will filter it out.
+            txSocket = new MulticastSocket();
+
+            if (properties.containsKey("receiveBufferSize"))
+                rxSocket.setReceiveBufferSize(Integer.parseInt(properties.getProperty("receiveBufferSize")));
+
+            if (properties.containsKey("soTimeout")) {
+                int timeout = Integer.parseInt(properties.getProperty("soTimeout"));
+                rxSocket.setSoTimeout(timeout);
+                txSocket.setSoTimeout(timeout);
+            }
+
+            txSocket.setTimeToLive(Integer.parseInt(properties.getProperty("ttl", "32")));
+
+            if (properties.containsKey("trafficClass")) {
+                txSocket.setTrafficClass(Integer.parseInt(properties.getProperty("trafficClass")));
+            }
+
+            // Disable receiving our own outbound packets.
+//            txSocket.setLoopbackMode(true);
+        }
+
+        boolean direct() {
+            return false;
+        }
+
+        InetAddress receive(ByteBuffer buffer) throws IOException {
+            rxPacket.setData(buffer.array(), buffer.arrayOffset(), buffer.capacity());
+            rxSocket.receive(rxPacket);
+            buffer.clear();
+            buffer.limit(rxPacket.getLength());
+            return rxPacket.getAddress();
+        }
+
+        void send(ByteBuffer buffer, int offset, int length) throws IOException {
+            // Send straight from the buffer's array, no copy.
+            txPacket.setData(buffer.array(), buffer.arrayOffset() + offset, length);
+            txSocket.send(txPacket);
+        }
+
+        void close() {
+            rxSocket.close();
+            txSocket.close();
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package stomp;
+
+import java.lang.reflect.Method;
+
+/**
+ * Virtual threads (Java 21+), found by reflection so the library still loads and runs on older JVMs.
+ * <p/>
+ * Connections start their reader on a virtual thread with "threads=virtual" on the url or the "stomp.threads=virtual"
+ * system property; where virtual threads aren't available the option quietly falls back to platform threads.
+ */
+final class VirtualThreads {
+
+    private static final Method OF_VIRTUAL;
+    private static final Method NAME;
+    private static final Method UNSTARTED;
+
+    static {
+        Method ofVirtual = null;
+        Method name = null;
+        Method unstarted = null;
+        try {
+            // Go through the public Thread.Builder interface, the builder's own class isn't accessible.
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            name = builder.getMethod("name", String.class);
+            unstarted = builder.getMethod("unstarted", Runnable.class);
+        } catch (Exception e) {
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NAME = name;
+        UNSTARTED = unstarted;
+    }
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return An unstarted thread, virtual if requested and available.
+     */
+    static Thread newThread(Runnable runnable, String name, boolean virtual) {
+        if (virtual && OF_VIRTUAL != null) {
+            try {
+                Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+                return (Thread) UNSTARTED.invoke(builder, runnable);
+            } catch (Exception e) {
+                // Fall through to a platform thread.
+            }
+        }
+        return new Thread(runnable, name);
+    }
+}
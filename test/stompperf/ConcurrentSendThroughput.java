@@ -0,0 +1,79 @@
+package stompperf;
+
+import stomp.Connection;
+import stomp.Message;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Many publisher threads sharing one connection, writing either directly or through the async writer.
+ */
+class ConcurrentSendThroughput extends DaemonPerformanceTest {
+
+    private final int publishers;
+    private final boolean async;
+    private Connection client;
+    private TcpServer server;
+
+    public ConcurrentSendThroughput(int publishers, boolean async) {
+        this.publishers = publishers;
+        this.async = async;
+    }
+
+    @Override
+    public String toString() {
+        return "ConcurrentSendThroughput{" +
+                "publishers=" + publishers +
+                ", async=" + async +
+                '}';
+    }
+
+    @Override
+    void init() {
+        server = new TcpServer(12345);
+        server.start();
+        try {
+            client = Connection.openConnection("stomp://127.0.0.1:12345" + (async ? "?writer=async" : ""));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    void destroy() {
+        if (client != null)
+            client.close();
+        server.stop();
+    }
+
+    public Object call() throws Exception {
+        final AtomicInteger sent = new AtomicInteger();
+        final long end = System.currentTimeMillis() + runMillis;
+        Thread[] threads = new Thread[publishers];
+        for (int i = 0; i < publishers; i++) {
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (System.currentTimeMillis() < end) {
+                            Message message = new Message();
+                            message.setContentUtf8("A man, a plan, a canal, Panama!");
+                            message.setProperty(Message.PERSISTENT, "true");
+                            message.setProperty(Message.TYPE, "text");
+                            client.send("/queue/temp", message, -1);
+                            sent.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        System.out.printf("Publisher failed: %s\n", e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        count = sent.get();
+        return count;
+    }
+}
@@ -0,0 +1,71 @@
+package stompperf;
+
+import stomp.Connection;
+import stomp.Message;
+
+import java.io.IOException;
+
+/**
+ * Receipted sends spread round-robin over many open connections, to compare how each threading mode copes with a
+ * large connection count: a platform thread per connection, a virtual thread per connection, or the shared NIO loops.
+ */
+class ConnectionScaling extends PerformanceTest {
+
+    private final int connections;
+    private final String mode;
+    private Connection[] clients;
+    private TcpServer server;
+    private int next;
+
+    /**
+     * @param mode "platform", "virtual" or "nio".
+     */
+    public ConnectionScaling(int connections, String mode) {
+        this.connections = connections;
+        this.mode = mode;
+    }
+
+    @Override
+    public String toString() {
+        return "ConnectionScaling{" +
+                "connections=" + connections +
+                ", mode=" + mode +
+                '}';
+    }
+
+    @Override
+    void init() {
+        server = new TcpServer(12345);
+        server.start();
+        int threads = Thread.activeCount();
+        String url = "stomp://127.0.0.1:12345" + ("nio".equals(mode) ? "?io=nio" : "?threads=" + mode);
+        clients = new Connection[connections];
+        long start = System.currentTimeMillis();
+        try {
+            for (int i = 0; i < connections; i++) {
+                clients[i] = Connection.openConnection(url);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.printf("    Opened %d connections in %d ms, %d more platform threads (including the server's)\n",
+                connections, System.currentTimeMillis() - start, Thread.activeCount() - threads);
+    }
+
+    @Override
+    void destroy() {
+        for (Connection client : clients) {
+            if (client != null)
+                client.close();
+        }
+        server.stop();
+    }
+
+    public Object call() throws Exception {
+        Message message = new Message();
+        message.setContentUtf8("A man, a plan, a canal, Panama!");
+        clients[next].send("/queue/temp", message, 1000);
+        next = (next + 1) % connections;
+        return message;
+    }
+}
@@ -0,0 +1,70 @@
+package stompperf;
+
+import stomp.Connection;
+import stomp.Message;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One 16KB message to several destinations per call, with sendToMany or a send per destination.
+ */
+class FanOutSendThroughput extends PerformanceTest {
+
+    private final int destinations;
+    private final boolean fanOut;
+    private final List<String> names = new ArrayList<String>();
+    private final byte[] body = new byte[16 * 1024];
+    private Connection client;
+    private TcpServer server;
+
+    public FanOutSendThroughput(int destinations, boolean fanOut) {
+        this.destinations = destinations;
+        this.fanOut = fanOut;
+        for (int i = 0; i < destinations; i++) {
+            names.add("/topic/region." + i);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "FanOutSendThroughput{" +
+                "destinations=" + destinations +
+                ", fanOut=" + fanOut +
+                '}';
+    }
+
+    @Override
+    void init() {
+        server = new TcpServer(12345);
+        server.start();
+        try {
+            client = Connection.openConnection("stomp://127.0.0.1:12345");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    void destroy() {
+        if (client != null)
+            client.close();
+        server.stop();
+    }
+
+    public Object call() throws Exception {
+        Message message = new Message();
+        message.setContent(body);
+        message.setProperty(Message.PERSISTENT, "true");
+        message.setProperty(Message.TYPE, "bytes");
+        if (fanOut) {
+            client.sendToMany(names, message, 1000);
+        } else {
+            for (int i = 0; i < destinations; i++) {
+                client.send(names.get(i), message, i == destinations - 1 ? 1000 : -1);
+            }
+        }
+        return message;
+    }
+}
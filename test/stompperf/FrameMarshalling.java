@@ -1,6 +1,7 @@
 package stompperf;
 
 import stomp.Frame;
+import stomp.FrameEncoder;
 import stomp.Message;
 
 import java.io.ByteArrayOutputStream;
@@ -8,6 +9,25 @@ import java.io.DataOutputStream;
 
 class FrameMarshalling extends PerformanceTest {
 
+    private boolean encoder;
+    private FrameEncoder frameEncoder;
+
+    public FrameMarshalling(boolean encoder) {
+        this.encoder = encoder;
+    }
+
+    @Override
+    public String toString() {
+        return "FrameMarshalling{" +
+                "encoder=" + encoder +
+                '}';
+    }
+
+    @Override
+    void init() {
+        frameEncoder = new FrameEncoder();
+    }
+
     public Object call() throws Exception {
         Message message = new Message();
         message.setContentUtf8("A man, a plan, a canal, Panama!");
@@ -17,6 +37,12 @@ class FrameMarshalling extends PerformanceTest {
         message.setProperty(Message.PRIORITY, "1");
         Frame frame = new Frame(message);
         frame.getHeaders().put("destination", "/queue/foo");
+        if (encoder) {
+            // Reused buffer, as used by the connections.
+            frameEncoder.clear();
+            frameEncoder.encode(frame);
+            return frameEncoder;
+        }
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         frame.write(new DataOutputStream(baos));
         return baos.toByteArray();
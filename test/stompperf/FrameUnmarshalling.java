@@ -1,5 +1,6 @@
 package stompperf;
 
+import stomp.Connection;
 import stomp.Frame;
 import stomp.Message;
 
@@ -12,6 +13,18 @@ import java.io.IOException;
 class FrameUnmarshalling extends PerformanceTest {
 
     private byte[] bytes;
+    private boolean contentLength;
+
+    public FrameUnmarshalling(boolean contentLength) {
+        this.contentLength = contentLength;
+    }
+
+    @Override
+    public String toString() {
+        return "FrameUnmarshalling{" +
+                "contentLength=" + contentLength +
+                '}';
+    }
 
     @Override
     void init() {
@@ -30,6 +43,12 @@ class FrameUnmarshalling extends PerformanceTest {
         } catch (IOException e) {
             e.printStackTrace();
         }
+
+        if (!contentLength) {
+            // Strip the header, as sent by brokers and publishers that leave it out.
+            String s = new String(bytes, Connection.UTF_8);
+            bytes = s.replaceFirst("content-length:[0-9]+\n", "").getBytes(Connection.UTF_8);
+        }
     }
 
     public Object call() throws Exception {
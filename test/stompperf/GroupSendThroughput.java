@@ -0,0 +1,81 @@
+package stompperf;
+
+import stomp.ConnectionGroup;
+import stomp.Message;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Many publisher threads, each on its own destination, sharing a group of connections sharded by destination.
+ */
+class GroupSendThroughput extends DaemonPerformanceTest {
+
+    private final int connections;
+    private final int publishers;
+    private ConnectionGroup group;
+    private TcpServer server;
+
+    public GroupSendThroughput(int connections, int publishers) {
+        this.connections = connections;
+        this.publishers = publishers;
+    }
+
+    @Override
+    public String toString() {
+        return "GroupSendThroughput{" +
+                "connections=" + connections +
+                ", publishers=" + publishers +
+                '}';
+    }
+
+    @Override
+    void init() {
+        server = new TcpServer(12345);
+        server.start();
+        try {
+            group = ConnectionGroup.open(Collections.singletonList("stomp://127.0.0.1:12345"), connections);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    void destroy() {
+        if (group != null)
+            group.close();
+        server.stop();
+    }
+
+    public Object call() throws Exception {
+        final AtomicInteger sent = new AtomicInteger();
+        final long end = System.currentTimeMillis() + runMillis;
+        Thread[] threads = new Thread[publishers];
+        for (int i = 0; i < publishers; i++) {
+            final String destination = "/queue/temp" + i;
+            threads[i] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (System.currentTimeMillis() < end) {
+                            Message message = new Message();
+                            message.setContentUtf8("A man, a plan, a canal, Panama!");
+                            message.setProperty(Message.PERSISTENT, "true");
+                            message.setProperty(Message.TYPE, "text");
+                            group.send(destination, message, -1);
+                            sent.incrementAndGet();
+                        }
+                    } catch (IOException e) {
+                        System.out.printf("Publisher failed: %s\n", e);
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        count = sent.get();
+        return count;
+    }
+}
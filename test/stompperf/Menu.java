@@ -76,12 +76,48 @@ public class Menu {
 
     public static void runPerformanceTests () throws Exception {
         PerformanceTest[] strategies = {
-                new FrameMarshalling(),
-                new FrameUnmarshalling(),
+                new FrameMarshalling(false),
+                new FrameMarshalling(true),
+                new FrameUnmarshalling(true),
+                new FrameUnmarshalling(false),
                 new TcpSendThroughput(false),
                 new TcpSendThroughput(true),
+                new TcpSendThroughput(false, true),
+                new TcpSendThroughput(true, true),
+                new TcpSendThroughput(false, 10),
+                new TcpSendThroughput(false, 100),
+                new TcpSendThroughput(false, 1000),
+                new TcpSendThroughput(true, 10),
+                new TcpSendThroughput(true, 100),
+                new TcpSendThroughput(true, 1000),
+                new WindowedSendThroughput(64),
+                new WindowedSendThroughput(1024),
+                new TransactedSendThroughput(1000),
+                new FanOutSendThroughput(10, false),
+                new FanOutSendThroughput(10, true),
+                new ConcurrentSendThroughput(16, false),
+                new ConcurrentSendThroughput(16, true),
+                new GroupSendThroughput(1, 16),
+                new GroupSendThroughput(4, 16),
                 new TcpReceiveThroughput(false),
                 new TcpReceiveThroughput(true),
+                new TcpReceiveThroughput(false, true),
+                new TcpReceiveThroughput(true, true),
+                new TcpReceiveThroughput(true, 10),
+                new TcpReceiveThroughput(4, 0),
+                new TcpReceiveThroughput(4, 4),
+                new TlsHandshakeRate(false, true),
+                new TlsHandshakeRate(true, false),
+                new TlsHandshakeRate(true, true),
+                new TlsSendThroughput(false),
+                new TlsSendThroughput(true),
+                new UdpReceiveThroughput(false),
+                new UdpReceiveThroughput(true),
+                new ReconnectRecovery(1000),
+                new ReconnectRecovery(30000),
+                new ConnectionScaling(1000, "platform"),
+                new ConnectionScaling(1000, "virtual"),
+                new ConnectionScaling(1000, "nio"),
         };
         for (final PerformanceTest strategy : strategies) {
             strategy.init();
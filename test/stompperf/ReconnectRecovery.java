@@ -0,0 +1,89 @@
+package stompperf;
+
+import stomp.Connection;
+import stomp.Consumer;
+import stomp.Message;
+
+import java.io.IOException;
+
+/**
+ * A reconnecting client subscribed to a flood while the server is killed and restarted over and over.  Prints how
+ * long after each restart the first replayed message and the first receipted send get through; the count is the
+ * number of recoveries.
+ */
+class ReconnectRecovery extends DaemonPerformanceTest implements Consumer {
+
+    private final long maxDelay;
+    private Connection client;
+    private TcpServer server;
+    private volatile long firstReceived; // Since the last restart
+
+    public ReconnectRecovery(int maxDelay) {
+        this.maxDelay = maxDelay;
+    }
+
+    @Override
+    public String toString() {
+        return "ReconnectRecovery{" +
+                "maxDelay=" + maxDelay +
+                '}';
+    }
+
+    @Override
+    void init() {
+        server = new TcpServer(12345);
+        server.start();
+        try {
+            client = Connection.openConnection("stomp://127.0.0.1:12345?reconnect=true&reconnectMaxDelay=" + maxDelay);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    void destroy() {
+        if (client != null)
+            client.close();
+        server.stop();
+    }
+
+    public Object call() throws Exception {
+        client.subscribe("/topic/flood", this, -1);
+        Message message = new Message();
+        message.setContentUtf8("A man, a plan, a canal, Panama!");
+        long end = System.currentTimeMillis() + runMillis;
+        while (System.currentTimeMillis() < end) {
+            server.stop();
+            firstReceived = 0;
+            final TcpServer restarted = new TcpServer(12345);
+            Thread starter = new Thread(new Runnable() {
+                public void run() {
+                    restarted.start();
+                }
+            });
+            starter.start();
+
+            // Held while the server is down, confirmed once the client is back.
+            client.send("/queue/temp", message, 30000);
+            long sent = System.currentTimeMillis();
+            starter.join();
+            server = restarted;
+            long since = server.getListeningSince();
+            while (firstReceived == 0) {
+                Thread.sleep(1);
+            }
+            System.out.printf("    Recovered: first message %d ms, receipted send %d ms after restart\n",
+                    firstReceived - since, sent - since);
+            count++;
+        }
+        return count;
+    }
+
+    public void onMessage(Message message) throws IOException {
+        if (firstReceived == 0)
+            firstReceived = System.currentTimeMillis();
+    }
+
+    public void onError(Connection connection, String error, Exception ex) {
+    }
+}
@@ -7,21 +7,49 @@ import stomp.Message;
 import java.io.IOException;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class TcpReceiveThroughput extends DaemonPerformanceTest implements Consumer {
 
     private Connection client;
     private TcpServer server;
     private boolean clientAck;
+    private boolean nio;
+    private int ackDelay = -1;
+
+    // Several flooded subscriptions, each message costing the consumer some cpu, optionally dispatched on a pool.
+    private int subscriptions = 1;
+    private int dispatchThreads;
+    private final AtomicInteger received = new AtomicInteger();
+    private static final long WORK_NANOS = 20000;
 
     public TcpReceiveThroughput(boolean clientAck) {
+        this(clientAck, false);
+    }
+
+    public TcpReceiveThroughput(boolean clientAck, boolean nio) {
+        this.clientAck = clientAck;
+        this.nio = nio;
+    }
+
+    public TcpReceiveThroughput(boolean clientAck, int ackDelay) {
         this.clientAck = clientAck;
+        this.ackDelay = ackDelay;
+    }
+
+    public TcpReceiveThroughput(int subscriptions, int dispatchThreads) {
+        this.subscriptions = subscriptions;
+        this.dispatchThreads = dispatchThreads;
     }
 
     @Override
     public String toString() {
-        return "TcpSendThroughput{" +
+        return "TcpReceiveThroughput{" +
                 "clientAck=" + clientAck +
+                ", nio=" + nio +
+                (ackDelay >= 0 ? ", ackDelay=" + ackDelay : "") +
+                (dispatchThreads > 0 || subscriptions > 1 ?
+                        ", subscriptions=" + subscriptions + ", dispatchThreads=" + dispatchThreads : "") +
                 '}';
     }
 
@@ -29,7 +57,9 @@ class TcpReceiveThroughput extends DaemonPerformanceTest implements Consumer {
         server = new TcpServer(12345);
         server.start();
         try {
-            client = Connection.openConnection("stomp://127.0.0.1:12345");
+            client = Connection.openConnection("stomp://127.0.0.1:12345" + (nio ? "?io=nio" : "") +
+                    (dispatchThreads > 0 ? "?dispatchThreads=" + dispatchThreads : "") +
+                    (ackDelay >= 0 ? "?ackDelay=" + ackDelay : ""));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -48,8 +78,10 @@ class TcpReceiveThroughput extends DaemonPerformanceTest implements Consumer {
     public Object call() throws Exception {
         final Timer timer = new Timer();
         final Object wait = new Object();
-        client.subscribe("/topic/flood", this, -1,
-                Connection.SUBSCRIBE_ACKMODE, clientAck? Connection.ACKMODE_CLIENT: Connection.ACKMODE_AUTO);
+        for (int i = 0; i < subscriptions; i++) {
+            client.subscribe("/topic/flood", this, -1,
+                    Connection.SUBSCRIBE_ACKMODE, clientAck? Connection.ACKMODE_CLIENT: Connection.ACKMODE_AUTO);
+        }
         timer.schedule(new TimerTask() {
             @Override
             public void run() {
@@ -65,10 +97,20 @@ class TcpReceiveThroughput extends DaemonPerformanceTest implements Consumer {
             wait.wait();
         }
 
+        if (subscriptions > 1 || dispatchThreads > 0)
+            count = received.get();
         return count;
     }
 
     public void onMessage(Message message) throws IOException {
+        if (subscriptions > 1 || dispatchThreads > 0) {
+            received.incrementAndGet();
+            long end = System.nanoTime() + WORK_NANOS;
+            while (System.nanoTime() < end) {
+                // Busy consumer.
+            }
+            return;
+        }
         count++;
         if (clientAck) {
             message.acknowledge(-1);
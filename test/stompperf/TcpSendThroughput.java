@@ -4,21 +4,41 @@ import stomp.Connection;
 import stomp.Message;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
+/**
+ * Sends one message per call, or with a batch size, that many per call with sendAll (so messages per second is the
+ * count times the batch).
+ */
 class TcpSendThroughput extends PerformanceTest {
 
     private Connection client;
     private TcpServer server;
     private boolean awaitReceipt;
+    private boolean nio;
+    private int batch;
 
     public TcpSendThroughput(boolean awaitReceipt) {
+        this(awaitReceipt, false);
+    }
+
+    public TcpSendThroughput(boolean awaitReceipt, boolean nio) {
+        this.awaitReceipt = awaitReceipt;
+        this.nio = nio;
+    }
+
+    public TcpSendThroughput(boolean awaitReceipt, int batch) {
         this.awaitReceipt = awaitReceipt;
+        this.batch = batch;
     }
 
     @Override
     public String toString() {
         return "TcpSendThroughput{" +
                 "awaitReceipt=" + awaitReceipt +
+                ", nio=" + nio +
+                (batch > 0 ? ", batch=" + batch : "") +
                 '}';
     }
 
@@ -27,7 +47,7 @@ class TcpSendThroughput extends PerformanceTest {
         server = new TcpServer(12345);
         server.start();
         try {
-            client = Connection.openConnection("stomp://127.0.0.1:12345");
+            client = Connection.openConnection("stomp://127.0.0.1:12345" + (nio ? "?io=nio" : ""));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -41,11 +61,24 @@ class TcpSendThroughput extends PerformanceTest {
     }
 
     public Object call() throws Exception {
+        if (batch > 0) {
+            List<Message> messages = new ArrayList<Message>(batch);
+            for (int i = 0; i < batch; i++) {
+                messages.add(message());
+            }
+            client.sendAll("/queue/temp", messages, awaitReceipt? 1000: -1);
+            return messages;
+        }
+        Message message = message();
+        client.send ("/queue/temp", message, awaitReceipt? 1000: -1);
+        return message;
+    }
+
+    private static Message message() {
         Message message = new Message();
         message.setContentUtf8("A man, a plan, a canal, Panama!");
         message.setProperty(Message.PERSISTENT, "true");
         message.setProperty(Message.TYPE, "text");
-        client.send ("/queue/temp", message, awaitReceipt? 1000: -1);
         return message;
     }
 }
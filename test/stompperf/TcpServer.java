@@ -1,16 +1,22 @@
 package stompperf;
 
 import stomp.Frame;
+import stomp.FrameDecoder;
+import stomp.FrameEncoder;
 import stomp.Message;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
+import javax.net.ssl.SSLContext;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TcpServer implements Runnable {
 
@@ -18,9 +24,27 @@ public class TcpServer implements Runnable {
     private int port;
     private Thread thread;
     private ServerSocket server;
+    private final SSLContext ssl;
+
+    // ACK frames received, and the message id of the last one.
+    private final AtomicInteger acks = new AtomicInteger();
+    private volatile String lastAck;
+    private final AtomicInteger sends = new AtomicInteger();
+
+    // Client sockets, closed on stop as if the server died.
+    private final List<Socket> clients = Collections.synchronizedList(new ArrayList<Socket>());
+    private volatile long listeningSince;
 
     public TcpServer(int port) {
+        this(port, null);
+    }
+
+    /**
+     * @param ssl If not null, the server speaks TLS.
+     */
+    public TcpServer(int port, SSLContext ssl) {
         this.port = port;
+        this.ssl = ssl;
     }
 
     public void start () {
@@ -41,6 +65,15 @@ public class TcpServer implements Runnable {
         } catch (IOException e) {
             // ignore
         }
+        synchronized (clients) {
+            for (Socket client : clients) {
+                try {
+                    client.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
         try {
             thread.interrupt();
             thread.join();
@@ -54,6 +87,25 @@ public class TcpServer implements Runnable {
         }
     }
 
+    public int getAckCount() {
+        return acks.get();
+    }
+
+    public String getLastAck() {
+        return lastAck;
+    }
+
+    public int getSendCount() {
+        return sends.get();
+    }
+
+    /**
+     * @return System.currentTimeMillis() when the server socket was bound.
+     */
+    public long getListeningSince() {
+        return listeningSince;
+    }
+
     public void run() {
         try {
             run2();
@@ -63,16 +115,20 @@ public class TcpServer implements Runnable {
     }
 
     public void run2() throws IOException {
-        server = new ServerSocket();
+        server = ssl == null ? new ServerSocket() : ssl.getServerSocketFactory().createServerSocket();
         server.setReuseAddress(true);
-        server.bind(new InetSocketAddress(12345));
+        server.bind(new InetSocketAddress(port));
+        listeningSince = System.currentTimeMillis();
         while (running) {
             Socket socket = null;
             try {
                 socket = server.accept();
+                if (ssl != null)
+                    socket.setTcpNoDelay(true); // Handshake messages go as separate small writes
             } catch (IOException e) {
                 break;
             }
+            clients.add(socket);
             Handler handler = new Handler(socket);
             handler.start();
         }
@@ -81,13 +137,17 @@ public class TcpServer implements Runnable {
     private class Handler extends Thread {
 
         private Socket socket;
-        private DataInputStream dis;
-        private DataOutputStream dos;
+        private InputStream input;
+        private FrameDecoder decoder = new FrameDecoder();
+        private ByteBuffer buffer = ByteBuffer.allocate(8192);
+        private OutputStream output;
+        private FrameEncoder encoder = new FrameEncoder();
 
         private Handler(Socket socket) throws IOException {
             this.socket = socket;
-            dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
-            dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            input = socket.getInputStream();
+            buffer.flip(); // Start out empty, in read mode
+            output = socket.getOutputStream();
         }
 
         @Override
@@ -95,9 +155,11 @@ public class TcpServer implements Runnable {
             try {
                 run2();
             } catch (IOException e) {
-                e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
+                if (running)
+                    e.printStackTrace();  //To change body of catch statement use File | Settings | File Templates.
             }
 
+            clients.remove(socket);
             try {
                 socket.close();
             } catch (IOException e) {
@@ -107,25 +169,29 @@ public class TcpServer implements Runnable {
 
         public void run2() throws IOException {
             while (running) {
-                Frame frame = Frame.read(dis);
+                Frame frame = readFrame();
                 if (frame == null)
                     break;
-                
+
                 if (frame.getType().equals(Frame.TYPE_CONNECT)) {
 //                    System.out.printf("Connect [login: '%s', passcode: '%s']\n",
 //                            frame.getHeaders().get ("login"), frame.getHeaders().get("passcode"));
                     Frame response = new Frame(Frame.TYPE_CONNECTED);
-                    response.write(dos);
+                    send(response);
                 } else if (frame.getType().equals(Frame.TYPE_DISCONNECT)) {
 //                    System.out.printf("Disconnect.\n");
                     break;
                 } else if (frame.getType().equals(Frame.TYPE_SEND)) {
+                    sends.incrementAndGet();
                     handleReceipt (frame);
                 } else if (frame.getType().equals(Frame.TYPE_ACK)) {
+                    acks.incrementAndGet();
+                    lastAck = frame.getHeader("message-id");
                     handleReceipt (frame);
                 } else if (frame.getType().equals(Frame.TYPE_SUBSCRIBE)) {
                     handleReceipt (frame);
-                    if (frame.getHeaders().get("destination").equals("/topic/flood")) {
+                    if (frame.getHeader("destination").equals("/topic/flood")) {
+                        final String subscription = frame.getHeader("id");
                         Thread flooder = new Thread(new Runnable() {
                             public void run() {
                                 while (running) {
@@ -134,7 +200,12 @@ public class TcpServer implements Runnable {
                                     message.setProperty(Message.PERSISTENT, "true");
                                     message.setProperty(Message.TYPE, "text");
                                     message.setProperty("destination", "/topic/flood");
+                                    message.setProperty("subscription", subscription);
                                     message.setProperty("message-id", "abc:" + System.identityHashCode(message));
+                                    // Typical ActiveMQ JMS headers.
+                                    message.setProperty(Message.EXPIRES, "0");
+                                    message.setProperty(Message.PRIORITY, "4");
+                                    message.setProperty("timestamp", Long.toString(System.currentTimeMillis()));
                                     Frame messageFrame = new Frame(message);
                                     messageFrame.setType(Frame.TYPE_MESSAGE);
                                     try {
@@ -149,14 +220,30 @@ public class TcpServer implements Runnable {
                     }
                 } else if (frame.getType().equals(Frame.TYPE_UNSUBSCRIBE)) {
                     handleReceipt (frame);
+                } else if (frame.getType().equals(Frame.TYPE_BEGIN) || frame.getType().equals(Frame.TYPE_COMMIT) ||
+                        frame.getType().equals(Frame.TYPE_ABORT)) {
+                    handleReceipt (frame);
                 } else {
                     System.out.printf("Client received unhandled frame %s\n", frame.getType());
                 }
             }
         }
 
+        private Frame readFrame() throws IOException {
+            Frame frame;
+            while ((frame = decoder.decode(buffer)) == null) {
+                buffer = FrameDecoder.compact(buffer);
+                int count = input.read(buffer.array(), buffer.position(), buffer.remaining());
+                if (count == -1)
+                    return null;
+                buffer.position(buffer.position() + count);
+                buffer.flip();
+            }
+            return frame;
+        }
+
         private void handleReceipt(Frame frame) throws IOException {
-            String id = frame.getHeaders().get ("receipt");
+            String id = frame.getHeader ("receipt");
             if (id != null) {
                 Frame response = new Frame (Frame.TYPE_RECEIPT);
                 response.getHeaders().put ("receipt-id", id);
@@ -165,8 +252,10 @@ public class TcpServer implements Runnable {
         }
 
         private void send (Frame frame) throws IOException {
-            synchronized (dos) {
-                frame.write(dos);
+            synchronized (output) {
+                encoder.clear();
+                encoder.encode(frame);
+                output.write(encoder.array(), 0, encoder.length());
             }
         }
     }
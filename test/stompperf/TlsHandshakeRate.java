@@ -0,0 +1,57 @@
+package stompperf;
+
+import stomp.Connection;
+
+import java.io.IOException;
+
+/**
+ * Opens and closes TLS connections for the run, with full handshakes or resuming the cached session, over the
+ * SSLEngine transport or blocking SSLSockets.
+ */
+class TlsHandshakeRate extends DaemonPerformanceTest {
+
+    private final boolean nio;
+    private final boolean resume;
+    private TcpServer server;
+    private String url;
+
+    public TlsHandshakeRate(boolean nio, boolean resume) {
+        this.nio = nio;
+        this.resume = resume;
+    }
+
+    @Override
+    public String toString() {
+        return "TlsHandshakeRate{" +
+                "nio=" + nio +
+                ", resume=" + resume +
+                '}';
+    }
+
+    @Override
+    void init() {
+        try {
+            server = new TcpServer(12345, TlsKeys.serverContext());
+            url = "stomp+ssl://127.0.0.1:12345?" + TlsKeys.clientOptions() + (nio ? "&io=nio" : "") +
+                    (resume ? "" : "&tlsSessionResume=false");
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        server.start();
+    }
+
+    @Override
+    void destroy() {
+        server.stop();
+    }
+
+    public Object call() throws Exception {
+        long end = System.currentTimeMillis() + runMillis;
+        while (System.currentTimeMillis() < end) {
+            Connection client = Connection.openConnection(url);
+            client.close();
+            count++;
+        }
+        return count;
+    }
+}
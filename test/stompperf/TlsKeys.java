@@ -0,0 +1,79 @@
+package stompperf;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyStore;
+
+/**
+ * A self-signed key for "localhost", made with keytool on first use, for TLS test servers; clients trust the same
+ * file.  Also set as the JVM's default trust store, for blocking SSLSockets.
+ */
+public class TlsKeys {
+
+    public static final String PASSWORD = "changeit";
+
+    private static File keyStore;
+
+    /**
+     * @return The keystore file, PKCS12.
+     */
+    public static synchronized File keyStore() throws IOException {
+        if (keyStore == null) {
+            File file = File.createTempFile("stomp-test", ".p12");
+            file.delete();
+            file.deleteOnExit();
+            String keytool = System.getProperty("java.home") + File.separator + "bin" + File.separator + "keytool";
+            Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "stomp", "-keyalg", "RSA",
+                    "-keysize", "2048", "-dname", "CN=localhost", "-validity", "2", "-storetype", "PKCS12",
+                    "-keystore", file.getPath(), "-storepass", PASSWORD, "-keypass", PASSWORD)
+                    .redirectErrorStream(true).start();
+            try {
+                if (process.waitFor() != 0)
+                    throw new IOException("keytool failed: " + process.exitValue());
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            System.setProperty("javax.net.ssl.trustStore", file.getPath());
+            System.setProperty("javax.net.ssl.trustStorePassword", PASSWORD);
+            System.setProperty("javax.net.ssl.trustStoreType", "PKCS12");
+            keyStore = file;
+        }
+        return keyStore;
+    }
+
+    /**
+     * @return Url options for a TLS client trusting the key.
+     */
+    public static String clientOptions() throws IOException {
+        return "tlsTrustStore=" + keyStore().getPath() + "&tlsTrustStorePassword=" + PASSWORD +
+                "&tlsTrustStoreType=PKCS12";
+    }
+
+    /**
+     * @return A context for a server with the key.
+     */
+    public static SSLContext serverContext() throws IOException {
+        try {
+            KeyStore store = KeyStore.getInstance("PKCS12");
+            InputStream in = new FileInputStream(keyStore());
+            try {
+                store.load(in, PASSWORD.toCharArray());
+            } finally {
+                in.close();
+            }
+            KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keys.init(store, PASSWORD.toCharArray());
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keys.getKeyManagers(), null, null);
+            return context;
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Error initializing TLS: " + e, e);
+        }
+    }
+}
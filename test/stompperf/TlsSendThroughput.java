@@ -0,0 +1,55 @@
+package stompperf;
+
+import stomp.Connection;
+import stomp.Message;
+
+import java.io.IOException;
+
+/**
+ * Sends over TLS, with the SSLEngine transport or blocking SSLSockets.
+ */
+class TlsSendThroughput extends PerformanceTest {
+
+    private final boolean nio;
+    private Connection client;
+    private TcpServer server;
+
+    public TlsSendThroughput(boolean nio) {
+        this.nio = nio;
+    }
+
+    @Override
+    public String toString() {
+        return "TlsSendThroughput{" +
+                "nio=" + nio +
+                '}';
+    }
+
+    @Override
+    void init() {
+        try {
+            server = new TcpServer(12345, TlsKeys.serverContext());
+            server.start();
+            client = Connection.openConnection("stomp+ssl://127.0.0.1:12345?" + TlsKeys.clientOptions() +
+                    (nio ? "&io=nio" : ""));
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    void destroy() {
+        if (client != null)
+            client.close();
+        server.stop();
+    }
+
+    public Object call() throws Exception {
+        Message message = new Message();
+        message.setContentUtf8("A man, a plan, a canal, Panama!");
+        message.setProperty(Message.PERSISTENT, "true");
+        message.setProperty(Message.TYPE, "text");
+        client.send("/queue/temp", message, -1);
+        return message;
+    }
+}
@@ -0,0 +1,60 @@
+package stompperf;
+
+import stomp.Connection;
+import stomp.Message;
+import stomp.Transaction;
+
+import java.io.IOException;
+
+/**
+ * Receipted transactions of 'batch' sends each, one commit per call.  Messages per second is the count times the
+ * batch size.
+ */
+class TransactedSendThroughput extends PerformanceTest {
+
+    private final int batch;
+    private Connection client;
+    private TcpServer server;
+
+    public TransactedSendThroughput(int batch) {
+        this.batch = batch;
+    }
+
+    @Override
+    public String toString() {
+        return "TransactedSendThroughput{" +
+                "batch=" + batch +
+                '}';
+    }
+
+    @Override
+    void init() {
+        server = new TcpServer(12345);
+        server.start();
+        try {
+            client = Connection.openConnection("stomp://127.0.0.1:12345");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    void destroy() {
+        if (client != null)
+            client.close();
+        server.stop();
+    }
+
+    public Object call() throws Exception {
+        Transaction tx = client.begin();
+        for (int i = 0; i < batch; i++) {
+            Message message = new Message();
+            message.setContentUtf8("A man, a plan, a canal, Panama!");
+            message.setProperty(Message.PERSISTENT, "true");
+            message.setProperty(Message.TYPE, "text");
+            tx.send("/queue/temp", message);
+        }
+        tx.commit(1000);
+        return tx;
+    }
+}
@@ -0,0 +1,78 @@
+package stompperf;
+
+import stomp.Connection;
+import stomp.Consumer;
+import stomp.Message;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A sender floods a multicast group, a frame per packet, and we count what gets through to a receiver; whatever it
+ * doesn't keep up with is lost.  The sender uses the same transport as the receiver, and with nio the binary packet
+ * header.
+ */
+class UdpReceiveThroughput extends DaemonPerformanceTest implements Consumer {
+
+    private static final String GROUP = "239.1.2.3:61617";
+
+    private final boolean nio;
+    private Connection sender;
+    private Connection receiver;
+    private final AtomicInteger received = new AtomicInteger();
+
+    public UdpReceiveThroughput(boolean nio) {
+        this.nio = nio;
+    }
+
+    @Override
+    public String toString() {
+        return "UdpReceiveThroughput{" +
+                "nio=" + nio +
+                '}';
+    }
+
+    void init() {
+        try {
+            String url = "stomp://" + GROUP + (nio ? "?io=nio&udpFormat=binary" : "");
+            receiver = Connection.openConnection(url);
+            sender = Connection.openConnection(url);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    void destroy() {
+        if (sender != null)
+            sender.close();
+        if (receiver != null)
+            receiver.close();
+        sender = null;
+        receiver = null;
+    }
+
+    public Object call() throws Exception {
+        receiver.subscribe(GROUP, this, -1);
+        received.set(0);
+        Message message = new Message();
+        message.setContentUtf8("Hello there!");
+        long end = System.currentTimeMillis() + runMillis;
+        while (System.currentTimeMillis() < end) {
+            for (int i = 0; i < 100; i++) {
+                sender.send(GROUP, message, -1);
+            }
+        }
+        Thread.sleep(100);
+        count = received.get();
+        destroy();
+        return count;
+    }
+
+    public void onMessage(Message message) throws IOException {
+        received.incrementAndGet();
+    }
+
+    public void onError(Connection connection, String error, Exception ex) {
+        System.out.printf("Error in connection: %s\n", error);
+    }
+}
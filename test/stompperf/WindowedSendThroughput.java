@@ -0,0 +1,69 @@
+package stompperf;
+
+import stomp.Connection;
+import stomp.Message;
+import stomp.Publisher;
+
+import java.io.IOException;
+
+/**
+ * Confirmed sends through a Publisher window, compare with TcpSendThroughput with and without receipts.
+ */
+class WindowedSendThroughput extends PerformanceTest implements Publisher.Listener {
+
+    private final int window;
+    private Connection client;
+    private TcpServer server;
+    private Publisher publisher;
+
+    public WindowedSendThroughput(int window) {
+        this.window = window;
+    }
+
+    @Override
+    public String toString() {
+        return "WindowedSendThroughput{" +
+                "window=" + window +
+                '}';
+    }
+
+    @Override
+    void init() {
+        server = new TcpServer(12345);
+        server.start();
+        try {
+            client = Connection.openConnection("stomp://127.0.0.1:12345");
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        publisher = new Publisher(client, window, this);
+    }
+
+    @Override
+    void destroy() {
+        try {
+            publisher.flush(5000);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if (client != null)
+            client.close();
+        server.stop();
+    }
+
+    public Object call() throws Exception {
+        Message message = new Message();
+        message.setContentUtf8("A man, a plan, a canal, Panama!");
+        message.setProperty(Message.PERSISTENT, "true");
+        message.setProperty(Message.TYPE, "text");
+        publisher.publish("/queue/temp", message);
+        return message;
+    }
+
+    public void onConfirmed(String destination, Message message) {
+    }
+
+    public void onFailed(String destination, Message message, IOException e) {
+        System.out.printf("Send failed: %s\n", e);
+    }
+}
@@ -2,6 +2,8 @@ package stomptest;
 
 import org.junit.Test;
 import stomp.Frame;
+import stomp.FrameDecoder;
+import stomp.FrameEncoder;
 import stomp.Message;
 
 import java.io.ByteArrayInputStream;
@@ -9,17 +11,22 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 /**
  * TODO:
- * - unmarshall a message without content-length
  * - unmarshall at EOF see if we get a null Frame
  */
 public class FrameTest {
@@ -59,6 +66,161 @@ public class FrameTest {
         validateFrame(frame);
     }
 
+    @Test
+    public void testDecodeSplitFrames() throws IOException {
+        Message message = new Message();
+        message.setContentUtf8("A man, a plan, a canal, Panama!");
+        message.setProperty(Message.PERSISTENT, "true");
+        Frame frame = new Frame(message);
+        frame.getHeaders().put("destination", "/queue/foo");
+        byte[] bytes = marshall(frame);
+
+        // Feed two copies one byte at a time, with a heartbeat in between.
+        FrameDecoder decoder = new FrameDecoder();
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        int frames = 0;
+        for (int i = 0; i < bytes.length * 2 + 1; i++) {
+            buffer.put(i == bytes.length ? (byte) '\n' : bytes[i % (bytes.length + 1)]);
+            buffer.flip();
+            Frame dup;
+            while ((dup = decoder.decode(buffer)) != null) {
+                assertEquals(Frame.TYPE_SEND, dup.getType());
+                assertArrayEquals(frame.getContent(), dup.getContent());
+                compareMaps(frame.getHeaders(), dup.getHeaders());
+                frames++;
+            }
+            buffer = FrameDecoder.compact(buffer);
+        }
+        assertEquals(2, frames);
+    }
+
+    @Test
+    public void testDecodeWithoutContentLength() throws IOException {
+        byte[] bytes = "MESSAGE\r\ndestination: /queue/foo \r\n\r\nHello\u0000\n\nRECEIPT\nreceipt-id:1\n\n\u0000".getBytes("UTF-8");
+        FrameDecoder decoder = new FrameDecoder();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+        Frame frame = decoder.decode(buffer);
+        assertEquals(Frame.TYPE_MESSAGE, frame.getType());
+        assertEquals("/queue/foo", frame.getHeaders().get("destination"));
+        assertEquals("Hello", new String(frame.getContent(), "UTF-8"));
+
+        frame = decoder.decode(buffer);
+        assertEquals(Frame.TYPE_RECEIPT, frame.getType());
+        assertEquals("1", frame.getHeaders().get("receipt-id"));
+        assertNull(frame.getContent());
+
+        assertNull(decoder.decode(buffer));
+        assertEquals(0, buffer.remaining());
+    }
+
+    @Test
+    public void testReadWithoutContentLength() throws IOException {
+        StringBuilder body = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            body.append("A man, a plan, a canal, Panama! ");
+        }
+        byte[] bytes = ("MESSAGE\ndestination:/queue/foo\n\n" + body + "\u0000\nMESSAGE\n\n\u0000").getBytes("UTF-8");
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(bytes));
+
+        Frame frame = Frame.read(dis);
+        assertEquals("/queue/foo", frame.getHeaders().get("destination"));
+        assertEquals(body.toString(), new String(frame.getContent(), "UTF-8"));
+
+        frame = Frame.read(dis);
+        assertEquals(Frame.TYPE_MESSAGE, frame.getType());
+        assertNull(frame.getContent());
+        assertNull(Frame.read(dis));
+    }
+
+    @Test
+    public void testDecodeCanonicalHeaders() throws IOException {
+        byte[] bytes = ("MESSAGE\ndestination:/topic/prices\nmessage-id:1\nx-custom:a\n\n\u0000" +
+                "MESSAGE\ndestination:/topic/prices\nmessage-id:2\nx-custom:a\n\n\u0000").getBytes("UTF-8");
+        FrameDecoder decoder = new FrameDecoder();
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        Frame f1 = decoder.decode(buffer);
+        Frame f2 = decoder.decode(buffer);
+
+        // Well-known keys are the constants themselves, repeated destinations share one instance.
+        for (String key : f1.getHeaders().keySet()) {
+            if (key.equals(Message.DESTINATION))
+                assertSame(Message.DESTINATION, key);
+        }
+        assertSame(f1.getHeaders().get(Message.DESTINATION), f2.getHeaders().get(Message.DESTINATION));
+        assertEquals("/topic/prices", f2.getHeaders().get(Message.DESTINATION));
+        assertEquals("2", f2.getHeaders().get(Message.MESSAGE_ID));
+        assertNotSame(f1.getHeaders().get("x-custom"), f2.getHeaders().get("x-custom"));
+        assertEquals("a", f2.getHeaders().get("x-custom"));
+    }
+
+    @Test
+    public void testDecodeLazyHeaders() throws IOException {
+        byte[] bytes = "MESSAGE\ndestination:/topic/a\nmessage-id : 7 \nx:1\nx:2:3\n\n\u0000".getBytes("UTF-8");
+        Frame frame = new FrameDecoder().decode(ByteBuffer.wrap(bytes));
+
+        // Single lookups on the raw headers, then the same answers once the whole map is decoded.
+        for (int pass = 0; pass < 2; pass++) {
+            assertEquals("/topic/a", frame.getHeader(Message.DESTINATION));
+            assertEquals("7", frame.getHeader(Message.MESSAGE_ID));
+            assertEquals("2:3", frame.getHeader("x"));
+            assertNull(frame.getHeader("subscription"));
+            assertEquals(3, frame.getHeaders().size());
+        }
+    }
+
+    @Test
+    public void testHeaderOrder() throws IOException {
+        Frame frame = new Frame(Frame.TYPE_SEND);
+        Map<String, String> headers = frame.getHeaders();
+        headers.put("c", "1");
+        headers.put("b", "2");
+        headers.put("a", "3");
+        headers.put("b", "4");
+        assertEquals(Arrays.asList("c", "b", "a"), Arrays.asList(headers.keySet().toArray()));
+
+        Iterator<String> keys = headers.keySet().iterator();
+        keys.next();
+        keys.next();
+        keys.remove();
+        headers.put("b", "5");
+        assertEquals("SEND\nc:1\na:3\nb:5\n\n\u0000", new String(marshall(frame), "UTF-8"));
+
+        Map<String, String> expected = new HashMap<String, String>();
+        expected.put("a", "3");
+        expected.put("b", "5");
+        expected.put("c", "1");
+        assertEquals(expected, headers);
+        assertEquals(headers, expected);
+        assertEquals(expected.hashCode(), headers.hashCode());
+    }
+
+    @Test
+    public void testEncodeBatch() throws IOException {
+        Message message = new Message();
+        message.setContentUtf8("A man, a plan, a canal, Panama!");
+        message.setProperty(Message.PERSISTENT, "true");
+        Frame frame = new Frame(message);
+        frame.getHeaders().put("destination", "/queue/foo");
+
+        // Small initial capacity, so the buffer has to grow part way through.
+        FrameEncoder encoder = new FrameEncoder(16, false);
+        encoder.encode(frame);
+        encoder.encode(new Frame(Frame.TYPE_DISCONNECT));
+        byte[] bytes = marshall(frame);
+        for (int i = 0; i < bytes.length; i++) {
+            assertEquals(bytes[i], encoder.array()[i]);
+        }
+
+        FrameDecoder decoder = new FrameDecoder();
+        ByteBuffer buffer = ByteBuffer.wrap(encoder.array(), 0, encoder.length());
+        Frame dup = decoder.decode(buffer);
+        assertArrayEquals(frame.getContent(), dup.getContent());
+        compareMaps(frame.getHeaders(), dup.getHeaders());
+        assertEquals(Frame.TYPE_DISCONNECT, decoder.decode(buffer).getType());
+        assertEquals(0, buffer.remaining());
+    }
+
     private void validateFrame(Frame frame) throws IOException {
         Frame dup = remarshall(frame);
         assertEquals(frame.getType(), dup.getType());
@@ -85,11 +247,15 @@ public class FrameTest {
         }
     }
 
-    private static Frame remarshall(Frame source) throws IOException {
+    private static byte[] marshall(Frame source) throws IOException {
         ByteArrayOutputStream baos = new ByteArrayOutputStream();
         DataOutputStream dos = new DataOutputStream(baos);
         source.write(dos);
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(baos.toByteArray()));
+        return baos.toByteArray();
+    }
+
+    private static Frame remarshall(Frame source) throws IOException {
+        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(marshall(source)));
         return Frame.read(dis);
     }
 
@@ -3,7 +3,22 @@ package stomptest;
 import junit.framework.TestCase;
 import stomp.BufferConnection;
 import stomp.Connection;
+import stomp.ConnectionGroup;
+import stomp.Consumer;
 import stomp.Message;
+import stomp.ReceiptFuture;
+import stomp.Transaction;
+import stompperf.TcpServer;
+import stompperf.TlsKeys;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class StompTest extends TestCase {
 
@@ -50,4 +65,307 @@ public class StompTest extends TestCase {
         assertEquals(2, buffer.getCount());
         assertEquals(1, buffer.getDestinationCount());
     }
+
+    public void testReceiptFutures() throws Exception {
+        TcpServer server = new TcpServer(12345);
+        server.start();
+        Connection stomp = Connection.openConnection("stomp://127.0.0.1:12345");
+        try {
+            // Many receipts in flight at once, each completed on its own.
+            List<ReceiptFuture> receipts = new ArrayList<ReceiptFuture>();
+            for (int i = 0; i < 100; i++) {
+                Message message = new Message();
+                message.setContentUtf8("Hello, stomp! " + i);
+                receipts.add(stomp.sendAsync("/queue/abc", message));
+            }
+            for (ReceiptFuture receipt : receipts) {
+                receipt.await(5000);
+                assertTrue(receipt.isDone());
+                assertNull(receipt.getFailure());
+            }
+
+            // The blocking form waits on one of the same.
+            Message message = new Message();
+            message.setContentUtf8("Hello, stomp!");
+            stomp.send("/queue/abc", message, 5000);
+
+            // Zero waits with no limit, rather than timing out straight away.
+            stomp.send("/queue/abc", message, 0);
+        } finally {
+            stomp.close();
+            server.stop();
+        }
+    }
+
+    public void testTransaction() throws Exception {
+        BufferConnection buffer = (BufferConnection) Connection.openConnection("stomp:buffer");
+
+        // Nothing goes out before the commit.
+        Transaction tx = buffer.begin();
+        for (int i = 0; i < 3; i++) {
+            Message message = new Message();
+            message.setContentUtf8("Hello, stomp! " + i);
+            tx.send("/queue/abc", message);
+        }
+        assertEquals(3, tx.size());
+        assertEquals(0, buffer.getCount("/queue/abc"));
+        tx.commit(1000);
+        assertEquals(3, buffer.getCount("/queue/abc"));
+        assertEquals(tx.getId(), buffer.getMessages("/queue/abc").get(0).getHeader("transaction"));
+
+        // Nor ever, after an abort.
+        tx = buffer.begin();
+        Message message = new Message();
+        message.setContentUtf8("Hello, stomp!");
+        tx.send("/queue/abc", message);
+        tx.abort();
+        assertEquals(3, buffer.getCount("/queue/abc"));
+        try {
+            tx.send("/queue/abc", message);
+            fail("Send after abort.");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    public void testFlowControl() throws Exception {
+        TcpServer server = new TcpServer(12345);
+        server.start();
+        Connection stomp = Connection.openConnection(
+                "stomp://127.0.0.1:12345?dispatchThreads=1&highWater=65536&lowWater=16384&prefetch=1000");
+        try {
+            final CountDownLatch gate = new CountDownLatch(1);
+            final AtomicInteger received = new AtomicInteger();
+            stomp.subscribe("/topic/flood", new Consumer() {
+                public void onMessage(Message message) throws IOException {
+                    try {
+                        gate.await();
+                    } catch (InterruptedException e) {
+                        throw new IOException(e);
+                    }
+                    received.incrementAndGet();
+                    message.acknowledge(-1);
+                }
+
+                public void onError(Connection connection, String error, Exception ex) {
+                }
+            }, -1, Connection.SUBSCRIBE_ACKMODE, Connection.ACKMODE_CLIENT);
+
+            // The stuck consumer's backlog stops reading at the high water mark.
+            Thread.sleep(500);
+            long buffered = stomp.getBufferedBytes();
+            assertTrue("Buffered " + buffered, buffered > 0 && buffered <= 65536 + 1024);
+            int inFlight = stomp.getInFlight("/topic/flood");
+            assertTrue(inFlight > 0);
+            assertEquals(inFlight, stomp.getUnacked("/topic/flood"));
+
+            // Sending isn't held up, whether throttled or paused.
+            Message message = new Message();
+            message.setContentUtf8("Hello, stomp!");
+            stomp.send("/queue/abc", message, -1);
+            stomp.pause(true);
+            stomp.send("/queue/abc", message, -1);
+            stomp.pause(false);
+
+            // Reading picks up again once the consumer drains the backlog.
+            gate.countDown();
+            Thread.sleep(500);
+            assertTrue(received.get() > inFlight);
+        } finally {
+            stomp.close();
+            server.stop();
+        }
+    }
+
+    public void testAckBatching() throws Exception {
+        TcpServer server = new TcpServer(12345);
+        server.start();
+        Connection stomp = Connection.openConnection("stomp://127.0.0.1:12345?ackDelay=60000&ackBatch=1000000");
+        final AtomicInteger received = new AtomicInteger();
+        final String[] last = new String[1];
+        String lastBeforeClose;
+        try {
+            stomp.subscribe("/topic/flood", new Consumer() {
+                public void onMessage(Message message) throws IOException {
+                    received.incrementAndGet();
+                    last[0] = message.getProperty(Message.MESSAGE_ID);
+                    message.acknowledge(-1);
+                }
+
+                public void onError(Connection connection, String error, Exception ex) {
+                }
+            }, -1, Connection.SUBSCRIBE_ACKMODE, Connection.ACKMODE_CLIENT);
+            Thread.sleep(200);
+            stomp.pause(true);
+            Thread.sleep(200);
+            assertTrue(received.get() > 1);
+            assertEquals(received.get(), stomp.getUnacked("/topic/flood"));
+            assertEquals(0, server.getAckCount());
+            lastBeforeClose = last[0];
+        } finally {
+            // Held back all along, then sent on close as a single cumulative ack.
+            stomp.close();
+            server.stop();
+        }
+        assertEquals(1, server.getAckCount());
+        assertEquals(lastBeforeClose, server.getLastAck());
+    }
+
+    public void testReconnect() throws Exception {
+        TcpServer server = new TcpServer(12345);
+        server.start();
+        Connection stomp = Connection.openConnection(
+                "stomp://127.0.0.1:12345?reconnect=true&reconnectDelay=50&reconnectMaxDelay=500");
+        final AtomicInteger received = new AtomicInteger();
+        try {
+            stomp.subscribe("/topic/flood", new Consumer() {
+                public void onMessage(Message message) throws IOException {
+                    received.incrementAndGet();
+                }
+
+                public void onError(Connection connection, String error, Exception ex) {
+                }
+            }, -1);
+            Thread.sleep(200);
+
+            // Sent while the server is gone, held until it's back.
+            server.stop();
+            Message message = new Message();
+            message.setContentUtf8("Hello, stomp!");
+            stomp.send("/queue/abc", message, -1);
+            assertFalse(stomp.isClosed());
+
+            server = new TcpServer(12345);
+            server.start();
+            stomp.send("/queue/abc", message, 5000);
+            assertEquals(2, server.getSendCount());
+
+            // The subscription was replayed.
+            int before = received.get();
+            Thread.sleep(200);
+            assertTrue(received.get() > before);
+        } finally {
+            stomp.close();
+            server.stop();
+        }
+    }
+
+    public void testConnectionGroup() throws Exception {
+        TcpServer server = new TcpServer(12345);
+        server.start();
+        ConnectionGroup group = ConnectionGroup.open(
+                Collections.singletonList("stomp://127.0.0.1:12345?checkInterval=100"), 4);
+        final AtomicInteger received = new AtomicInteger();
+        try {
+            // Destinations spread over every member.
+            Map<String, Connection> owners = new HashMap<String, Connection>();
+            for (int i = 0; i < 200; i++) {
+                owners.put("/queue/" + i, group.connectionFor("/queue/" + i));
+            }
+            for (Connection connection : group.getConnections()) {
+                assertTrue(owners.containsValue(connection));
+            }
+
+            group.subscribe("/topic/flood", new Consumer() {
+                public void onMessage(Message message) throws IOException {
+                    received.incrementAndGet();
+                }
+
+                public void onError(Connection connection, String error, Exception ex) {
+                }
+            }, -1);
+            Thread.sleep(200);
+
+            // Only the closed member's destinations move.
+            Connection failed = group.connectionFor("/topic/flood");
+            failed.close();
+            for (Map.Entry<String, Connection> entry : owners.entrySet()) {
+                Connection now = group.connectionFor(entry.getKey());
+                assertNotSame(failed, now);
+                if (entry.getValue() != failed)
+                    assertSame(entry.getValue(), now);
+            }
+            assertEquals(3, group.getConnections().size());
+
+            // The subscription moved with its destination.
+            int before = received.get();
+            Thread.sleep(300);
+            assertTrue(received.get() > before);
+
+            Message message = new Message();
+            message.setContentUtf8("Hello, stomp!");
+            for (String destination : owners.keySet()) {
+                group.send(destination, message, 5000);
+            }
+            assertEquals(owners.size(), server.getSendCount());
+
+            group.close();
+            try {
+                group.send("/queue/0", message, -1);
+                fail("Send after close.");
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            group.close();
+            server.stop();
+        }
+    }
+
+    public void testFailover() throws Exception {
+        TcpServer server = new TcpServer(12346);
+        server.start();
+        // Nothing listens on the first port, the second wins straight away.
+        long start = System.currentTimeMillis();
+        Connection stomp = Connection.openConnection(
+                "stomp://127.0.0.1:12345,127.0.0.1:12346?connectTimeout=300&reconnect=true&reconnectDelay=50");
+        TcpServer other = null;
+        try {
+            assertTrue(stomp.isConnected());
+            assertTrue(System.currentTimeMillis() - start < 1000);
+
+            // Losing that broker, it reconnects to the other.
+            server.stop();
+            other = new TcpServer(12345);
+            other.start();
+            Message message = new Message();
+            message.setContentUtf8("Hello, stomp!");
+            stomp.send("/queue/abc", message, 5000);
+            assertEquals(1, other.getSendCount());
+        } finally {
+            stomp.close();
+            server.stop();
+            if (other != null)
+                other.stop();
+        }
+    }
+
+    public void testTls() throws Exception {
+        TcpServer server = new TcpServer(12345, TlsKeys.serverContext());
+        server.start();
+        Connection stomp = Connection.openConnection("stomp+ssl://127.0.0.1:12345?io=nio&" + TlsKeys.clientOptions());
+        final AtomicInteger received = new AtomicInteger();
+        try {
+            Message message = new Message();
+            message.setContentUtf8("Hello, stomp!");
+            stomp.send("/queue/abc", message, 5000);
+            assertEquals(1, server.getSendCount());
+
+            stomp.subscribe("/topic/flood", new Consumer() {
+                public void onMessage(Message message) throws IOException {
+                    assertEquals("A man, a plan, a canal, Panama!", message.getContentUtf8());
+                    received.incrementAndGet();
+                }
+
+                public void onError(Connection connection, String error, Exception ex) {
+                }
+            }, -1);
+            Thread.sleep(300);
+            assertTrue(received.get() > 100);
+        } finally {
+            stomp.close();
+            server.stop();
+        }
+        assertTrue(stomp.isClosed());
+    }
 }
@@ -1,13 +1,23 @@
 package stomptest;
 
 import junit.framework.TestCase;
+import stomp.BatchConsumer;
 import stomp.Connection;
 import stomp.Consumer;
 import stomp.Message;
+import stomp.MessageBatch;
 
 import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.MulticastSocket;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
 public class UdpConnectionTest extends TestCase {
 
@@ -53,4 +63,336 @@ public class UdpConnectionTest extends TestCase {
         assertEquals("C1 did the sending, it should not have received any messages.", 0, m1.size());
         assertEquals("C2 should have received messages.", COUNT, m2.size());
     }
+
+    public void testUdpNio () throws Exception {
+        String UDP_ADDRESS = "239.1.2.3:61616";
+        Connection c1 = Connection.openConnection("stomp://" + UDP_ADDRESS + "?io=nio&udpFormat=binary");
+        Connection c2 = Connection.openConnection("stomp://" + UDP_ADDRESS);
+        final List<String> m1 = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> m2 = Collections.synchronizedList(new ArrayList<String>());
+
+        c1.subscribe(UDP_ADDRESS, new Consumer() {
+            public void onMessage(Message message) throws IOException {
+                assertNotNull(message.getProperty(Message.HOST_ADDRESS));
+                m1.add(message.getContentUtf8());
+            }
+
+            public void onError(Connection connection, String error, Exception ex) {
+                System.out.printf("c1 error: %s\n", error);
+            }
+        }, -1);
+        c2.subscribe(UDP_ADDRESS, new Consumer() {
+            public void onMessage(Message message) throws IOException {
+                m2.add(message.getContentUtf8());
+            }
+
+            public void onError(Connection connection, String error, Exception ex) {
+                System.out.printf("c2 error: %s\n", error);
+            }
+        }, -1);
+
+        // Channels and sockets, binary and plain packets, talk to each other, and each drops its own packets.
+        int COUNT = 10;
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < COUNT; i++) {
+            Message msg = new Message();
+            msg.setContentUtf8("Hello there! " + i);
+            c1.send(UDP_ADDRESS, msg, -1);
+            msg = new Message();
+            msg.setContentUtf8("Hello there! " + i);
+            c2.send(UDP_ADDRESS, msg, -1);
+            expected.add("Hello there! " + i);
+            Thread.sleep (20);
+        }
+        Thread.sleep (200);
+        c2.close();
+        c1.close();
+
+        assertEquals(expected, m1);
+        assertEquals(expected, m2);
+    }
+
+    public void testUdpBodyPool () throws Exception {
+        String UDP_ADDRESS = "239.1.2.3:61616";
+        Connection c1 = Connection.openConnection("stomp://" + UDP_ADDRESS);
+        Connection c2 = Connection.openConnection("stomp://" + UDP_ADDRESS + "?bodyPool=true");
+        final List<Message> retained = new ArrayList<Message>();
+        final List<Message> released = new ArrayList<Message>();
+
+        c2.subscribe(UDP_ADDRESS, new Consumer() {
+            public void onMessage(Message message) throws IOException {
+                assertEquals("Hello there!", message.getContentUtf8());
+                assertTrue(message.getContent().length >= message.getContentLength());
+                if (retained.size() <= released.size()) {
+                    message.retain();
+                    retained.add(message);
+                } else {
+                    released.add(message);
+                }
+            }
+
+            public void onError(Connection connection, String error, Exception ex) {
+                System.out.printf("c2 error: %s\n", error);
+            }
+        }, -1);
+
+        int COUNT = 10;
+        for (int i = 0; i < COUNT; i++) {
+            Message msg = new Message();
+            msg.setContentUtf8("Hello there!");
+            c1.send(UDP_ADDRESS, msg, -1);
+            Thread.sleep (50);
+        }
+        c2.close();
+        c1.close();
+
+        assertEquals(COUNT / 2, retained.size());
+        assertEquals(COUNT / 2, released.size());
+        for (Message message : released) {
+            assertNull("Body should have gone back to the pool.", message.getContent());
+        }
+        for (Message message : retained) {
+            assertEquals("Hello there!", message.getContentUtf8());
+            message.release();
+            assertNull(message.getContent());
+        }
+    }
+
+    public void testUdpSendAll () throws Exception {
+        String UDP_ADDRESS = "239.1.2.3:61616";
+        Connection c1 = Connection.openConnection("stomp://" + UDP_ADDRESS + "?packetSize=1000&udpFormat=binary");
+        Connection c2 = Connection.openConnection("stomp://" + UDP_ADDRESS);
+        final List<String> received = new ArrayList<String>();
+
+        c2.subscribe(UDP_ADDRESS, new Consumer() {
+            public void onMessage(Message message) throws IOException {
+                received.add(message.getContentUtf8());
+            }
+
+            public void onError(Connection connection, String error, Exception ex) {
+                System.out.printf("c2 error: %s\n", error);
+            }
+        }, -1);
+
+        // Several frames to a packet, and several packets.
+        int COUNT = 50;
+        List<Message> batch = new ArrayList<Message>();
+        for (int i = 0; i < COUNT; i++) {
+            Message msg = new Message();
+            msg.setContentUtf8("Hello there! " + i);
+            batch.add(msg);
+        }
+        c1.sendAll(UDP_ADDRESS, batch, -1);
+        Thread.sleep (500);
+        c2.close();
+        c1.close();
+
+        assertEquals(COUNT, received.size());
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals("Hello there! " + i, received.get(i));
+        }
+    }
+
+    public void testUdpFragments () throws Exception {
+        String UDP_ADDRESS = "239.1.2.3:61616";
+        Connection c1 = Connection.openConnection("stomp://" + UDP_ADDRESS + "?packetSize=1400&udpFormat=binary");
+        // Room for the whole burst of fragments.
+        Connection c2 = Connection.openConnection("stomp://" + UDP_ADDRESS + "?io=nio&receiveBufferSize=1048576");
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+
+        c2.subscribe(UDP_ADDRESS, new Consumer() {
+            public void onMessage(Message message) throws IOException {
+                received.add(message.getContentUtf8());
+            }
+
+            public void onError(Connection connection, String error, Exception ex) {
+                System.out.printf("c2 error: %s\n", error);
+            }
+        }, -1);
+
+        // Over a whole datagram, small ones packed around it, and one just over a packet.
+        StringBuilder big = new StringBuilder();
+        while (big.length() < 100000) {
+            big.append("Hello there! ").append(big.length()).append('\n');
+        }
+        char[] overOne = new char[1400];
+        Arrays.fill(overOne, 'x');
+        List<String> expected = Arrays.asList("small 1", big.toString(), "small 2", new String(overOne), "small 3");
+        List<Message> batch = new ArrayList<Message>();
+        for (String content : expected) {
+            Message msg = new Message();
+            msg.setContentUtf8(content);
+            batch.add(msg);
+        }
+        c1.sendAll(UDP_ADDRESS, batch, -1);
+        Thread.sleep (500);
+        c2.close();
+        c1.close();
+
+        assertEquals(expected, received);
+    }
+
+    public void testUdpSendToMany () throws Exception {
+        String UDP_ADDRESS = "239.1.2.3:61616";
+        Connection c1 = Connection.openConnection("stomp://" + UDP_ADDRESS + "?udpFormat=binary");
+        Connection c2 = Connection.openConnection("stomp://" + UDP_ADDRESS);
+        final List<String> received = new ArrayList<String>();
+
+        Consumer consumer = new Consumer() {
+            public void onMessage(Message message) throws IOException {
+                received.add(message.getProperty("destination") + " " + message.getProperty("priority") + " " +
+                        message.getContentUtf8());
+            }
+
+            public void onError(Connection connection, String error, Exception ex) {
+                System.out.printf("c2 error: %s\n", error);
+            }
+        };
+        c2.subscribe("/topic/a", consumer, -1);
+        c2.subscribe("/topic/b", consumer, -1);
+        c2.subscribe("/topic/c", consumer, -1);
+
+        Message msg = new Message();
+        msg.setProperty(Message.PRIORITY, "7");
+        msg.setContentUtf8("Hello there!");
+        c1.sendToMany(Arrays.asList("/topic/a", "/topic/b", "/topic/c"), msg);
+        Thread.sleep (500);
+        c2.close();
+        c1.close();
+
+        assertEquals(Arrays.asList("/topic/a 7 Hello there!", "/topic/b 7 Hello there!", "/topic/c 7 Hello there!"),
+                received);
+    }
+
+    public void testUdpSendToManyPlain () throws Exception {
+        String UDP_ADDRESS = "239.1.2.3:61616";
+        Connection c1 = Connection.openConnection("stomp://" + UDP_ADDRESS);
+
+        // Listen as a receiver from before packing would, a datagram at a time.
+        MulticastSocket socket = new MulticastSocket(new InetSocketAddress("239.1.2.3", 61616));
+        socket.joinGroup(InetAddress.getByName("239.1.2.3"));
+        socket.setSoTimeout(2000);
+        List<String> destinations = new ArrayList<String>();
+        try {
+            Message msg = new Message();
+            msg.setContentUtf8("Hello there!");
+            c1.sendToMany(Arrays.asList("/topic/a", "/topic/b", "/topic/c"), msg);
+
+            byte[] buffer = new byte[0x10000];
+            for (int i = 0; i < 3; i++) {
+                DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                socket.receive(packet);
+                String text = new String(buffer, 0, packet.getLength(), "UTF-8");
+                assertTrue(text.startsWith("MESSAGE\n"));
+                assertEquals("One frame per datagram.", text.length() - 1, text.indexOf('\0'));
+                int start = text.indexOf("destination:") + "destination:".length();
+                destinations.add(text.substring(start, text.indexOf('\n', start)));
+            }
+        } finally {
+            socket.close();
+            c1.close();
+        }
+        assertEquals(Arrays.asList("/topic/a", "/topic/b", "/topic/c"), destinations);
+    }
+
+    public void testUdpDispatchExecutor () throws Exception {
+        String UDP_ADDRESS = "239.1.2.3:61616";
+        Connection c1 = Connection.openConnection("stomp://" + UDP_ADDRESS + "?udpFormat=binary");
+        Connection c2 = Connection.openConnection("stomp://" + UDP_ADDRESS + "?dispatchThreads=2");
+        final List<String> slow = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> fast = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch release = new CountDownLatch(1);
+
+        c2.subscribe("/topic/slow", new Consumer() {
+            public void onMessage(Message message) throws IOException {
+                try {
+                    release.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                slow.add(message.getContentUtf8());
+            }
+
+            public void onError(Connection connection, String error, Exception ex) {
+                System.out.printf("c2 error: %s\n", error);
+            }
+        }, -1);
+        c2.subscribe("/topic/fast", new Consumer() {
+            public void onMessage(Message message) throws IOException {
+                fast.add(message.getContentUtf8());
+            }
+
+            public void onError(Connection connection, String error, Exception ex) {
+                System.out.printf("c2 error: %s\n", error);
+            }
+        }, -1);
+
+        int COUNT = 20;
+        List<String> expected = new ArrayList<String>();
+        for (int i = 0; i < COUNT; i++) {
+            Message msg = new Message();
+            msg.setContentUtf8("Hello there! " + i);
+            c1.sendToMany(Arrays.asList("/topic/slow", "/topic/fast"), msg);
+            expected.add("Hello there! " + i);
+            Thread.sleep (10);
+        }
+        Thread.sleep (500);
+
+        // The stuck consumer doesn't hold up the other subscription.
+        assertEquals(expected, fast);
+        assertTrue(slow.isEmpty());
+
+        release.countDown();
+        Thread.sleep (500);
+        c2.close();
+        c1.close();
+        assertEquals(expected, slow);
+    }
+
+    public void testUdpBatchConsumer () throws Exception {
+        String UDP_ADDRESS = "239.1.2.3:61616";
+        Connection c1 = Connection.openConnection("stomp://" + UDP_ADDRESS + "?packetSize=1000&udpFormat=binary");
+        Connection c2 = Connection.openConnection("stomp://" + UDP_ADDRESS + "?batchSize=8");
+        final List<String> received = new ArrayList<String>();
+        final List<Integer> sizes = new ArrayList<Integer>();
+
+        c2.subscribe(UDP_ADDRESS, new BatchConsumer() {
+            public void onMessages(MessageBatch batch) throws IOException {
+                sizes.add(batch.size());
+                for (Message message : batch) {
+                    received.add(message.getContentUtf8());
+                }
+            }
+
+            public void onMessage(Message message) throws IOException {
+                fail("Batch consumers get batches.");
+            }
+
+            public void onError(Connection connection, String error, Exception ex) {
+                System.out.printf("c2 error: %s\n", error);
+            }
+        }, -1);
+
+        // Each packet's frames arrive as a batch, split at the batch size.
+        int COUNT = 50;
+        List<Message> batch = new ArrayList<Message>();
+        for (int i = 0; i < COUNT; i++) {
+            Message msg = new Message();
+            msg.setContentUtf8("Hello there! " + i);
+            batch.add(msg);
+        }
+        c1.sendAll(UDP_ADDRESS, batch, -1);
+        Thread.sleep (500);
+        c2.close();
+        c1.close();
+
+        assertEquals(COUNT, received.size());
+        for (int i = 0; i < COUNT; i++) {
+            assertEquals("Hello there! " + i, received.get(i));
+        }
+        assertTrue(sizes.size() < COUNT);
+        for (int size : sizes) {
+            assertTrue(size <= 8);
+        }
+    }
 }